@@ -1,31 +1,83 @@
 package com.image.loader;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageView;
 
 /**
  * @author Aalap Shah
  * A helper class to load remote images asynchronously.
  */
-public class ImageLoader{
+public class ImageLoader {
 
     private static final String TAG = "ImageLoader";
 
@@ -37,6 +89,11 @@ public class ImageLoader{
 		 * imgaeUrl holds the remote URL of the image
 		 */
 		String imageUrl;
+		/**
+		 * cacheKey identifies the decoded variant of imageUrl in the memory and file-system cache.
+		 * See {@link ImageLoader#buildCacheKey(String, int, int, int, Bitmap.Config)}
+		 */
+		String cacheKey;
 		/**
 		 * imageBitmap holds the bitmap of the corresponding image once downloaded
 		 */
@@ -45,15 +102,129 @@ public class ImageLoader{
 		 * Scale factor of the image. It basically reduces the image quality by sampling while decoding. 
 		 */
 		Integer scale;
+		/**
+		 * Target width and height the image is decoded for. 0 means no target in that dimension.
+		 */
+		int targetWidth;
+		int targetHeight;
+		/**
+		 * Bitmap config the image is decoded with.
+		 */
+		Bitmap.Config config;
+		/**
+		 * Number of bytes of imageBitmap accounted in imageCacheSize, 0 if it is not accounted yet.
+		 */
+		long byteCount;
+		/**
+		 * Larger cached variant of the same image url, if this request is served by downsampling it
+		 * rather than reading from file-system or network. It is leased till it is downsampled.
+		 */
+		imageObject source;
+		/**
+		 * Number of leases on imageBitmap, held by the ImageViews showing it, by the save task writing it and by
+		 * users through {@link BitmapLease}. A leased bitmap is never purged, and if it is removed from the cache
+		 * anyway its bytes stay accounted till the last lease is released.
+		 */
+		int leases;
+		/**
+		 * Flag indicating the image was removed from the memory cache after it was accounted.
+		 */
+		boolean evicted;
+		/**
+		 * Flag indicating the image was purged by tag, so it must not be written to the file-system cache anymore.
+		 */
+		boolean purged;
 		/**
 		 * Linked Queue of imageObjectPairs object which hold the ImageView and/or ImageCallback for the requests for
 		 * same image URL.
 		 */
 		ConcurrentLinkedQueue<imageObjectPair> imageObjectPairs;
 		/**
-		 * Priority of this request
+		 * Priority of this request, highest of basePriority and the priorities of its waiters.
 		 */
 		int loadPriority;
+		/**
+		 * Highest priority of the requests for this image without ImageView and callback, 0 if none.
+		 */
+		int basePriority;
+		/**
+		 * Soft deadline of this request in deadline scheduling mode, earliest among its waiters. 0 if none.
+		 */
+		long deadline;
+		/**
+		 * Deadline the request is ordered by in the deadline queue. Same as deadline, unless the request was 
+		 * demoted for missing it.
+		 */
+		long queueDeadline;
+		/**
+		 * Flag indicating the request was dropped for missing its deadline.
+		 */
+		boolean dropped;
+		/**
+		 * Number of retries of the download done so far.
+		 */
+		int attempts;
+		/**
+		 * Error of the last failed download, HTTP status code or one of {@link ImageLoader#ERROR_NETWORK, 
+		 * ImageLoader#ERROR_DECODE, ImageLoader#ERROR_DROPPED}. 0 if none.
+		 */
+		int errorCode;
+		/**
+		 * Flag indicating the last failed download may succeed if retried.
+		 */
+		boolean transientError;
+		/**
+		 * Time to first byte in milliseconds and number of bytes of the last download.
+		 */
+		long firstByteTime;
+		long bytesDownloaded;
+		/**
+		 * Number of requests served by this imageObject, used to pick the hot set for the snapshot.
+		 */
+		int hitCount;
+		/**
+		 * Flag indicating the image is preloaded from the snapshot rather than requested.
+		 */
+		boolean preload;
+		/**
+		 * Flag indicating a request joined the image while it was preloaded, so it is read even if the preload 
+		 * was skipped.
+		 */
+		boolean preloadJoined;
+		/**
+		 * Flag indicating the file-system cache entry turned out corrupt and the image has to be downloaded again.
+		 */
+		boolean refetch;
+		/**
+		 * Flag indicating this request is served by decoding the encoded bytes of the image from the encoded cache.
+		 */
+		boolean encoded;
+		/**
+		 * Fetcher of the local source the image is read from on the read worker, null for remote images.
+		 */
+		Fetcher fetcher;
+		/**
+		 * Transformation chain of the request, null if the image is not transformed.
+		 */
+		Transformation[] transformations;
+		/**
+		 * Untransformed image the transformation chain is to be applied to, leased till it is applied.
+		 */
+		imageObject transformSource;
+		/**
+		 * Flag indicating the image was just derived on the read worker, by a transformation chain or by 
+		 * downsampling, so it is still to be written to the file-system cache.
+		 */
+		boolean derived;
+		/**
+		 * Flag indicating the image is a variant decoded from another image and not in the file-system cache 
+		 * yet. It is written there if it is within the variant threshold, in a lossy format if it is opaque.
+		 */
+		boolean persistVariant;
+		/**
+		 * Transformed requests waiting for this untransformed image, null if none.
+		 */
+		ConcurrentLinkedQueue<imageObject> dependents;
 		/** 
 		 * Expire time of the request
 		 */
@@ -75,6 +246,11 @@ public class ImageLoader{
 		ImageView iv;
 		ImageLoaderCallback ilcb;
 		long time;
+		/**
+		 * Priority the waiter asked for, and the priority in effect after visibility boost.
+		 */
+		int requestedPriority;
+		int priority;
 		imageObjectPair(ImageView i, ImageLoaderCallback cb) {
 			iv = i;
 			ilcb = cb;
@@ -82,6 +258,151 @@ public class ImageLoader{
 		}
 	}
 
+	/**
+	 * Handle of an image request returned by loadImage. It lets user change the priority of the request
+	 * while it is still waiting to be downloaded.
+	 */
+	public static class ImageRequest {
+		final ImageLoader loader;
+		final imageObject iO;
+		final imageObjectPair iOP;
+		ImageRequest(ImageLoader l, imageObject i, imageObjectPair p) {
+			loader = l;
+			iO = i;
+			iOP = p;
+		}
+
+		/**
+		 * changes the priority of this request. The image is downloaded with the highest priority among 
+		 * all requests waiting for it, so lowering the priority of one request does not slow down the others.
+		 * 
+		 * @param loadPriority new image loading priority, one of {@link FASTEST_QUEUE, FASTER_QUEUE, FAST_QUEUE}
+		 */
+		public void setPriority(int loadPriority) {
+			if(isDone()) {
+				return;
+			}
+			synchronized (loader.mCacheLock) {
+				if(iOP != null) {
+					iOP.requestedPriority = loadPriority;
+					iOP.priority = boostedPriority(iOP);
+				} else {
+					iO.basePriority = loadPriority;
+				}
+				loader.updateLoadPriority(iO);
+			}
+		}
+
+		/**
+		 * sets a soft deadline for this request in deadline scheduling mode {@link ImageLoader#setDeadlineScheduling(boolean, long, boolean)}.
+		 * The image is downloaded by the earliest deadline among all requests waiting for it.
+		 * 
+		 * @param millis time in milliseconds from now the image should be loaded within.
+		 */
+		public void setDeadline(long millis) {
+			if(isDone()) {
+				return;
+			}
+			synchronized (loader.mCacheLock) {
+				loader.tightenDeadline(iO, System.currentTimeMillis() + millis);
+			}
+		}
+
+		/**
+		 * @return priority the image of this request is currently loaded with, 0 if it is already loaded.
+		 */
+		public int getPriority() {
+			return isDone() ? 0 : iO.loadPriority;
+		}
+
+		/**
+		 * @return true if the image of this request is already loaded
+		 */
+		public boolean isDone() {
+			return iO == null || iO.imageBitmap != null || iO.evicted;
+		}
+	}
+
+	/**
+	 * Lease on a bitmap of the memory cache. While it is held the bitmap is not purged from the cache and never
+	 * handed to the bitmap pool for reuse. Bitmaps shown in an ImageView by the loader are leased to the ImageView 
+	 * automatically, a lease is needed to keep a bitmap delivered to a callback without ImageView beyond the 
+	 * callback when a bitmap pool is used.
+	 */
+	public static class BitmapLease {
+		final ImageLoader loader;
+		final imageObject iO;
+		boolean released;
+		BitmapLease(ImageLoader l, imageObject i) {
+			loader = l;
+			iO = i;
+		}
+
+		/**
+		 * @return leased bitmap, null once the lease is released.
+		 */
+		public Bitmap getBitmap() {
+			return released ? null : iO.imageBitmap;
+		}
+
+		/**
+		 * releases the lease. Releasing it again has no effect.
+		 */
+		public void release() {
+			if(!released) {
+				released = true;
+				loader.releaseLease(iO);
+			}
+		}
+	}
+
+	/**
+	 * Statistics of the deadline scheduling mode. Completed requests are those downloaded with a deadline,
+	 * missed those of them completed after their deadline, lateness is summed over missed requests.
+	 */
+	public static class DeadlineStats {
+		public long completed;
+		public long missed;
+		public long dropped;
+		public long demoted;
+		public long totalLateness;
+		public long maxLateness;
+
+		DeadlineStats copy() {
+			DeadlineStats stats = new DeadlineStats();
+			stats.completed = completed;
+			stats.missed = missed;
+			stats.dropped = dropped;
+			stats.demoted = demoted;
+			stats.totalLateness = totalLateness;
+			stats.maxLateness = maxLateness;
+			return stats;
+		}
+	}
+
+	/**
+	 * Statistics of hedged downloads. Downloads are those made over HTTP, hedges the second attempts started for 
+	 * them, won the hedges which got their response first.
+	 */
+	public static class HedgeStats {
+		public long downloads;
+		public long hedges;
+		public long won;
+
+		HedgeStats copy() {
+			HedgeStats stats = new HedgeStats();
+			stats.downloads = downloads;
+			stats.hedges = hedges;
+			stats.won = won;
+			return stats;
+		}
+	}
+
+	/**
+	 * Request handle returned for requests which completed immediately, from memory cache.
+	 */
+	static final ImageRequest COMPLETED_REQUEST = new ImageRequest(null, null, null);
+
 	/** 
 	 * This is an internal static class which represents the ImgaeLoaderCallback used 
 	 * if user chooses to get notified about the download.
@@ -92,695 +413,5247 @@ public class ImageLoader{
 				iv.setImageBitmap(b);
 			}
 		}
+
+		/**
+		 * Called when the image could not be loaded, after all retries.
+		 *
+		 * @param imageUrl image url of the request
+		 * @param iv ImageView of the request, may be null
+		 * @param errorCode HTTP status code, or one of {@link ImageLoader#ERROR_NETWORK, ImageLoader#ERROR_DECODE, ImageLoader#ERROR_DROPPED}
+		 */
+		void OnError(String imageUrl, ImageView iv, int errorCode) {
+		}
 	}
-	
+
 	/**
-	 * Singleton ImageLoader Reference instance.
+	 * Transport opening the connections images are downloaded over. Custom transports can add headers or route 
+	 * requests through another HTTP stack, as long as the connection returned is not connected yet.
 	 */
-	static ImageLoader ILRef;
+	public interface Transport {
+		/**
+		 * opens a connection to an image url.
+		 *
+		 * @param url url of the image
+		 * @return connection to the url, not connected yet.
+		 * @throws IOException
+		 */
+		URLConnection open(URL url) throws IOException;
+	}
 
-	
-	/**  
-	 * Linked Hash Map storing the imageURL TO imageObject {@link imageObject}
-	 */
-	static LinkedHashMap<String, imageObject> imageCache;
-	/** 
-	 * Current image cache size, Initialized to 0
-	 */
-	static long imageCacheSize = 0;
 	/**
-	 * Image cache upper limit value. Initialized to default value of 10 MB. These get modified after getting the memory class
+	 * Fetcher of images from a local source, selected by the scheme of the image url. Images of local sources are
+	 * decoded on the read worker straight from the source, they take no download slot and are not written to the
+	 * file-system cache. Fetchers for file, content and data urls are built in, including assets as 
+	 * file:///android_asset/ urls. Remote images are fetched through the {@link Transport}.
 	 */
-	static long imageCacheUpperLimit = 10*1024*1024;
+	public interface Fetcher {
+		/**
+		 * opens the encoded image of a url. Called on the read worker.
+		 *
+		 * @param imageUrl url of the image
+		 * @return stream of the encoded image, closed by the loader.
+		 * @throws IOException if the source can not be read.
+		 */
+		InputStream open(String imageUrl) throws IOException;
+	}
+
 	/**
-	 * Image cache lower limit value. Initialized to default value of 8 MB.
+	 * Prefix of the file urls of application assets.
 	 */
-	static long imageCacheLowerLimit = 8*1024*1024;
+	static final String ASSET_PREFIX = "file:///android_asset/";
+
 	/**
-	 * Hashmap used to store the tag TO array of imageURLs. 
+	 * Fetcher of data urls, "data:[mime type][;base64],data".
 	 */
-	static HashMap<String, ArrayList<String>> tagMap;
+	static final Fetcher DATA_FETCHER = new Fetcher() {
+		public InputStream open(String imageUrl) throws IOException {
+			int comma = imageUrl.indexOf(',');
+			if(comma < 0) {
+				throw new IOException("Malformed data url");
+			}
+			String data = imageUrl.substring(comma + 1);
+			try {
+				if(imageUrl.lastIndexOf(";base64", comma) >= 0) {
+					return new ByteArrayInputStream(Base64.decode(data, Base64.DEFAULT));
+				}
+				return new ByteArrayInputStream(URLDecoder.decode(data, "ISO-8859-1").getBytes("ISO-8859-1"));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Malformed data url");
+			}
+		}
+	};
+
 	/**
-	 * Hash-map maintaining ImageView request to timestamp of the request.
+	 * Transport opening connections with {@link URL#openConnection()}.
 	 */
-	static HashMap<ImageView, Long> imageViewUpdateTimeMap;
-	
-	
+	static final Transport DEFAULT_TRANSPORT = new Transport() {
+		public URLConnection open(URL url) throws IOException {
+			return url.openConnection();
+		}
+	};
+
 	/**
-	 * Download thread synchronizing object. 
+	 * Pool of bitmaps no longer shown anywhere, reused as decode targets rather than allocating new bitmaps. A 
+	 * bitmap is reused only by a decode of exactly its size and config, as required before KitKat. The pool holds
+	 * at most its budget, recycling the oldest bitmaps beyond it, and may be shared by several instances through
+	 * {@link Builder#setBitmapPool(BitmapPool)}.
 	 */
-	static final Object mTaskLock = new Object();
+	public static class BitmapPool {
+		long maxSize;
+		long size = 0;
+		LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+
+		/**
+		 * @param maxSize budget of the pool in bytes.
+		 */
+		public BitmapPool(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * puts a bitmap no longer shown into the pool. Immutable bitmaps can not be decoded into, they are 
+		 * recycled instead.
+		 *
+		 * @param bitmap bitmap to be reused
+		 */
+		public synchronized void put(Bitmap bitmap) {
+			if(bitmap == null || bitmap.isRecycled()) {
+				return;
+			}
+			long bytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+			if(!bitmap.isMutable() || bytes > maxSize) {
+				bitmap.recycle();
+				return;
+			}
+			bitmaps.addLast(bitmap);
+			size += bytes;
+			trimToSize(maxSize);
+		}
+
+		/**
+		 * takes a bitmap out of the pool, most recently put first.
+		 *
+		 * @param width width of the bitmap
+		 * @param height height of the bitmap
+		 * @param config config of the bitmap
+		 * @return pooled bitmap of the size and config, null if there is none.
+		 */
+		public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+			for(Iterator<Bitmap> it = bitmaps.descendingIterator(); it.hasNext();) {
+				Bitmap bitmap = it.next();
+				if(bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+					it.remove();
+					size -= (long) bitmap.getRowBytes() * bitmap.getHeight();
+					return bitmap;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * recycles the oldest bitmaps of the pool till it holds at most the limit.
+		 *
+		 * @param limit bytes the pool may keep
+		 */
+		public synchronized void trimToSize(long limit) {
+			while(size > limit && !bitmaps.isEmpty()) {
+				Bitmap bitmap = bitmaps.removeFirst();
+				size -= (long) bitmap.getRowBytes() * bitmap.getHeight();
+				bitmap.recycle();
+			}
+		}
+
+		/**
+		 * @return bytes of bitmaps currently in the pool.
+		 */
+		public synchronized long getSize() {
+			return size;
+		}
+	}
+
 	/**
-	 * download thread counter.
+	 * Transformation applied to a decoded image on the read worker before it is cached and delivered. Transformed
+	 * images are cached under a key including the keys of the whole chain, so repeated requests are served from 
+	 * memory without transforming again.
 	 */
-	static int mTaskCounter = 0;
+	public interface Transformation {
+		/**
+		 * transforms a bitmap. The source bitmap must not be modified or recycled, it may be cached and shown.
+		 *
+		 * @param source bitmap to transform
+		 * @return transformed bitmap, the source itself if nothing is to be done, null on failure.
+		 */
+		Bitmap transform(Bitmap source);
+
+		/**
+		 * @return key identifying the transformation and its parameters in the cache key.
+		 */
+		String key();
+	}
+
 	/**
-	 * These are three priority values for image requests
+	 * Transformation scaling the image to cover a size and cropping the overflow around the center.
 	 */
-	static int FASTEST_QUEUE = 3;
-	static int FASTER_QUEUE = 2;
-	static int FAST_QUEUE = 1;
+	public static class CenterCrop implements Transformation {
+		int width;
+		int height;
+		public CenterCrop(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		public Bitmap transform(Bitmap source) {
+			int w = source.getWidth();
+			int h = source.getHeight();
+			/* Note : crop of source in the aspect ratio of the target, centered */
+			int cropWidth = w;
+			int cropHeight = h;
+			if((long) w * height > (long) h * width) {
+				cropWidth = (int) ((long) h * width / height);
+			} else {
+				cropHeight = (int) ((long) w * height / width);
+			}
+			int left = (w - cropWidth) / 2;
+			int top = (h - cropHeight) / 2;
+			Bitmap result = Bitmap.createBitmap(width, height, source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888);
+			Canvas canvas = new Canvas(result);
+			canvas.drawBitmap(source, new Rect(left, top, left + cropWidth, top + cropHeight), new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+			return result;
+		}
+
+		public String key() {
+			return "centerCrop(" + width + "x" + height + ")";
+		}
+	}
+
 	/**
-	 * These are 3 concurrent linked queues representing three level priority queue, 
-	 * namely Fastest, Faster, Fast. They hold the imageObject {@link imageObject}
+	 * Transformation cropping the largest centered circle of the image, outside of it is transparent.
 	 */
-	static ConcurrentLinkedQueue<Object> fastestQueue, fasterQueue, fastQueue;
+	public static class CircleCrop implements Transformation {
+		public Bitmap transform(Bitmap source) {
+			int size = Math.min(source.getWidth(), source.getHeight());
+			Bitmap square = source;
+			if(source.getWidth() != source.getHeight()) {
+				square = Bitmap.createBitmap(source, (source.getWidth() - size) / 2, (source.getHeight() - size) / 2, size, size);
+			}
+			Bitmap result = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+			Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+			paint.setShader(new BitmapShader(square, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+			new Canvas(result).drawCircle(size / 2f, size / 2f, size / 2f, paint);
+			if(square != source) {
+				square.recycle();
+			}
+			return result;
+		}
+
+		public String key() {
+			return "circleCrop";
+		}
+	}
 
-	
-	
 	/**
-	 * save thread synchronizing object.
+	 * Transformation rounding the corners of the image with a radius in pixels, outside of them is transparent.
 	 */
-	static final Object mSaveImageLock = new Object();
+	public static class RoundedCorners implements Transformation {
+		int radius;
+		public RoundedCorners(int radius) {
+			this.radius = radius;
+		}
+
+		public Bitmap transform(Bitmap source) {
+			Bitmap result = Bitmap.createBitmap(source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888);
+			Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+			paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+			new Canvas(result).drawRoundRect(new RectF(0, 0, source.getWidth(), source.getHeight()), radius, radius, paint);
+			return result;
+		}
+
+		public String key() {
+			return "roundedCorners(" + radius + ")";
+		}
+	}
+
 	/**
-	 * Save image thread counter. 
+	 * Transformation blurring the image with a radius in pixels. Three box blur passes in each direction, which 
+	 * come close to a gaussian blur.
 	 */
-	static int mSaveImageCounter = 0;
+	public static class Blur implements Transformation {
+		int radius;
+		public Blur(int radius) {
+			this.radius = radius;
+		}
+
+		public Bitmap transform(Bitmap source) {
+			int w = source.getWidth();
+			int h = source.getHeight();
+			if(radius <= 0) {
+				return source;
+			}
+			int[] pixels = new int[w * h];
+			int[] temp = new int[w * h];
+			source.getPixels(pixels, 0, w, 0, 0, w, h);
+			for(int pass = 0; pass < 3; pass++) {
+				boxBlur(pixels, temp, w, h, 1, w);
+				boxBlur(temp, pixels, h, w, w, 1);
+			}
+			Bitmap result = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+			result.setPixels(pixels, 0, w, 0, 0, w, h);
+			return result;
+		}
+
+		/**
+		 * blurs the lines of in into out with a moving sum over the radius, clamping at the edges.
+		 *
+		 * @param in source pixels
+		 * @param out blurred pixels
+		 * @param length number of pixels in a line
+		 * @param lines number of lines
+		 * @param step distance between neighbouring pixels of a line
+		 * @param lineStep distance between the first pixels of neighbouring lines
+		 */
+		void boxBlur(int[] in, int[] out, int length, int lines, int step, int lineStep) {
+			int window = 2 * radius + 1;
+			for(int line = 0; line < lines; line++) {
+				int start = line * lineStep;
+				int a = 0, r = 0, g = 0, b = 0;
+				for(int i = -radius; i <= radius; i++) {
+					int p = in[start + Math.max(0, Math.min(length - 1, i)) * step];
+					a += p >>> 24; r += (p >> 16) & 0xff; g += (p >> 8) & 0xff; b += p & 0xff;
+				}
+				for(int i = 0; i < length; i++) {
+					out[start + i * step] = ((a / window) << 24) | ((r / window) << 16) | ((g / window) << 8) | (b / window);
+					int p = in[start + Math.min(length - 1, i + radius + 1) * step];
+					int q = in[start + Math.max(0, i - radius) * step];
+					a += (p >>> 24) - (q >>> 24);
+					r += ((p >> 16) & 0xff) - ((q >> 16) & 0xff);
+					g += ((p >> 8) & 0xff) - ((q >> 8) & 0xff);
+					b += (p & 0xff) - (q & 0xff);
+				}
+			}
+		}
+
+		public String key() {
+			return "blur(" + radius + ")";
+		}
+	}
+
 	/**
-	 * File Directory pointer for storing the file-system cached images.
+	 * Error codes passed to {@link ImageLoaderCallback#OnError(String, ImageView, int)} for failures without HTTP status code.
+	 * Network covers timeouts and broken connections, decode covers bodies which are not a decodable image,
+	 * dropped covers requests dropped for missing their deadline, source covers local sources which can not be read.
 	 */
-	static File fileDir;
+	public static final int ERROR_NETWORK = -1;
+	public static final int ERROR_DECODE = -2;
+	public static final int ERROR_DROPPED = -3;
+	public static final int ERROR_SOURCE = -4;
+	
 	/**
-	 * Thread used to lazy saving of images to file-system
-	 */
-	static Thread saveThread;
-	/** 
-	 * This is a concurrent linked queue holding imageObjects {@link imageObject} with images already download.
-	 * Used to store the imageBitmaps to file system 
+	 * Shared ImageLoader instance returned by {@link #initialize(Context)}.
 	 */
-	static ConcurrentLinkedQueue<Object> saveQueue;
+	static ImageLoader ILRef;
 
-	
-	
-	
 	/**
-	 * read from file system thread synchronizing object.
+	 * Application context this instance is registered with for memory callbacks.
 	 */
-	static final Object mReadImageLock = new Object();
+	Context appContext;
 	/**
-	 * This is a concurrent linked queue holding imageObjects {@link imageObject} with images being loaded from the file-system.
-	 */
-	static ConcurrentLinkedQueue<Object> readQueue;
-	/** 
-	 * Flag indicating if the file-system read thread is instantiated or not.
+	 * Memory cache synchronizing object. Guards imageCache and the tag and variant maps.
 	 */
-	static boolean mReadImageFlag = false;
+	final Object mCacheLock = new Object();
 
 	
-	
+	/**  
+	 * Linked Hash Map storing the imageURL TO imageObject {@link imageObject}
+	 */
+	LinkedHashMap<String, imageObject> imageCache;
 	/** 
-	 * Private constructor as its a singleton object.
+	 * Current image cache size, Initialized to 0
 	 */
-	private ImageLoader() {
-	}
+	long imageCacheSize = 0;
+	/**
+	 * Image cache upper limit value. Initialized to default value of 10 MB. These get modified after getting the memory class
+	 */
+	long imageCacheUpperLimit = 10*1024*1024;
+	/**
+	 * Image cache lower limit value. Initialized to default value of 8 MB.
+	 */
+	long imageCacheLowerLimit = 8*1024*1024;
+	/**
+	 * Flag indicating transformed images are written to the file-system cache too. Off by default, as they can be
+	 * transformed again from the untransformed image in the file-system cache.
+	 */
+	boolean transformDiskCache = false;
+	/**
+	 * Largest size in bytes of a decoded variant derived from another image, by downsampling it or decoding its 
+	 * encoded bytes, which is written to the file-system cache, 0 to keep derived variants in memory only.
+	 */
+	long variantDiskThreshold = 0;
+	/**
+	 * JPEG quality opaque derived variants are written to the file-system cache with.
+	 */
+	static final int VARIANT_QUALITY = 85;
+	/**
+	 * Linked Hash Map storing the imageURL TO the off-heap chunk holding the encoded bytes of the image as 
+	 * downloaded. Any variant of the image can be decoded from them, without going to file-system or network.
+	 */
+	LinkedHashMap<String, encodedEntry> encodedCache;
+	/**
+	 * Allocator of the off-heap chunks of the encoded cache.
+	 */
+	SlabAllocator slabAllocator = new SlabAllocator();
+	/**
+	 * Current encoded cache size, in bytes of chunks in use, and its limit. Limit is initialized to one eighth of 
+	 * the image cache upper limit.
+	 */
+	long encodedCacheSize = 0;
+	long encodedCacheLimit = 0;
+	long encodedCacheFullLimit = 0;
+	/**
+	 * Hashmap used to store the tag TO set of cache keys of the images loaded with it. 
+	 */
+	HashMap<String, HashSet<String>> tagMap;
+	/**
+	 * Hashmap used to store the cache key TO set of tags it is loaded with. Size of the set is the reference 
+	 * count of the image, it is removed from memory and file-system only once no tag references it anymore.
+	 */
+	HashMap<String, HashSet<String>> keyTagMap;
+	/**
+	 * Hashmap used to store the imageURL TO array of cache keys of its variants present in imageCache.
+	 */
+	HashMap<String, ArrayList<String>> variantMap;
+	/**
+	 * Hashmap used to store the tag TO bitmap config used for its requests. A null config means automatic.
+	 */
+	HashMap<String, Bitmap.Config> tagConfigMap;
+	/**
+	 * This is an internal class holding the memory quota of a tag, and the bytes of the images accounted to it.
+	 * A zero minimum or maximum means none.
+	 */
+	private static class tagQuota {
+		long minimum;
+		long maximum;
+		long size;
+		boolean isSet() {
+			return minimum > 0 || maximum > 0;
+		}
+	}
+	/**
+	 * Hashmap used to store the tag TO its tagQuota {@link tagQuota}. Images are accounted to the tag of the 
+	 * request which loaded them. Tags without quota are kept while images are accounted to them.
+	 */
+	HashMap<String, tagQuota> tagQuotaMap;
+	/**
+	 * Number of tags with a quota set.
+	 */
+	int tagQuotaCount = 0;
+	/**
+	 * Bitmap config used for requests whose tag has no config set. A null config means automatic, in which 
+	 * case images without alpha channel (JPEGs and opaque PNGs) are decoded as RGB_565 and others as ARGB_8888.
+	 */
+	Bitmap.Config defaultConfig = Bitmap.Config.ARGB_8888;
+	/**
+	 * This is an internal class holding the last request made for an ImageView. It is updated in place by every
+	 * request, so rebinding an ImageView allocates nothing, and the cache key is reused as long as the request 
+	 * parameters do not change.
+	 */
+	private static class viewState {
+		/**
+		 * Timestamp of the last request, only pairs requested since are delivered to the ImageView.
+		 */
+		long time;
+		String imageUrl;
+		int scale;
+		int targetWidth;
+		int targetHeight;
+		Bitmap.Config config;
+		Transformation[] transformations;
+		/**
+		 * Cache key of the last request, used to tell the visible images from the invisible ones on memory pressure.
+		 */
+		String cacheKey;
+		/**
+		 * imageObject of the bitmap the loader last showed in the ImageView, which the ImageView holds a lease on.
+		 */
+		imageObject lease;
+		/**
+		 * Reference releasing the lease once the ImageView is garbage collected, null while it holds none.
+		 */
+		viewLeaseRef ref;
+		boolean matches(String imageUrl, int scale, int targetWidth, int targetHeight, Bitmap.Config config, Transformation[] transformations) {
+			return cacheKey != null && scale == this.scale && targetWidth == this.targetWidth && targetHeight == this.targetHeight 
+					&& config == this.config && imageUrl.equals(this.imageUrl) && Arrays.equals(transformations, this.transformations);
+		}
+	}
+	/**
+	 * This is an internal class referencing an ImageView which holds a lease weakly. Once the ImageView is
+	 * garbage collected, e.g. along with a destroyed activity, the reference is queued and the lease released.
+	 */
+	private static class viewLeaseRef extends WeakReference<ImageView> {
+		final viewState state;
 
-    /**
-     * initializes the image loader and its internal structures.
-     *
-     * @param context - context is application's base context. Used to get the file-system access.
-     * @return returns the reference to the ImageLoader object used for further APIs.
-     */
-	public static ImageLoader initialize(Context context) {
-		if(ILRef == null) {
-			ILRef = new ImageLoader();
+		viewLeaseRef(ImageView iv, viewState state, ReferenceQueue<ImageView> queue) {
+			super(iv, queue);
+			this.state = state;
+		}
+	}
+	/**
+	 * Weak hash-map maintaining ImageView TO its viewState {@link viewState}, it never keeps an ImageView 
+	 * alive. Requests without ImageView share the state of the null key.
+	 */
+	WeakHashMap<ImageView, viewState> viewStateMap;
+	/**
+	 * References of the ImageViews holding a lease, and queue they are put in once their ImageView is collected.
+	 */
+	HashSet<viewLeaseRef> viewLeaseRefs;
+	ReferenceQueue<ImageView> collectedViews;
+	/**
+	 * Hash-map maintaining accounted bitmap TO its imageObject, used to lease bitmaps delivered to callbacks.
+	 */
+	HashMap<Bitmap, imageObject> bitmapOwnerMap;
+
+	/**
+	 * Image cache upper and lower limit values derived from the memory class, before any memory pressure.
+	 */
+	long imageCacheFullUpperLimit = 10*1024*1024;
+	long imageCacheFullLowerLimit = 8*1024*1024;
+	/**
+	 * Percentage of the full image cache limits currently in effect. Lowered on memory pressure and 
+	 * restored step by step once the pressure subsides.
+	 */
+	int memoryBudgetPercent = 100;
+	/**
+	 * Time of the last memory trim or budget restore step.
+	 */
+	long lastBudgetChangeTime = 0;
+	/**
+	 * Interval without memory pressure after which the budget is raised by one step.
+	 */
+	static final long BUDGET_RESTORE_INTERVAL = 30*1000;
+	/**
+	 * Percentage the budget is raised by on each restore step.
+	 */
+	static final int BUDGET_RESTORE_STEP = 25;
+	
+	
+	/**
+	 * Download thread synchronizing object. 
+	 */
+	final Object mTaskLock = new Object();
+	/**
+	 * download thread counter.
+	 */
+	int mTaskCounter = 0;
+	/**
+	 * Number of download threads allowed to run in parallel. Adjusted by the measured throughput and latency
+	 * between minTaskLimit and maxTaskLimit, see {@link #recordDownload(imageObject)}.
+	 */
+	int mTaskLimit = 5;
+	int minTaskLimit = 2;
+	int maxTaskLimit = 8;
+	/**
+	 * Executor running the download threads. Own pool as the shared AsyncTask pool runs at most 5 in parallel.
+	 */
+	Executor downloadExecutor;
+	/**
+	 * Executor running the file-system reads and saves and the maintenance tasks of this instance.
+	 */
+	Executor taskExecutor;
+	/**
+	 * Transport opening the connections of the downloads.
+	 */
+	Transport transport;
+	/**
+	 * Hash-map maintaining url scheme TO the fetcher of its local source {@link Fetcher}.
+	 */
+	HashMap<String, Fetcher> fetcherMap;
+	/**
+	 * Pool of bitmaps reused as decode targets, null if none. May be shared with other instances.
+	 */
+	BitmapPool bitmapPool;
+	/**
+	 * Concurrency controller synchronizing object, and the measurements of the current window of downloads.
+	 */
+	final Object mConcurrencyLock = new Object();
+	long windowStartTime = 0;
+	long windowBytes = 0;
+	long windowFirstByteTime = 0;
+	int windowCount = 0;
+	/**
+	 * Throughput in bytes per second of the previous window, and baseline time to first byte in milliseconds.
+	 */
+	long lastThroughput = 0;
+	long baseFirstByteTime = 0;
+	/**
+	 * Ring of the mean times to first byte of the last windows, and number of windows in it. The baseline is 
+	 * their minimum, so it only rises once the lowest window ages out of the ring, and queueing delay building
+	 * up slowly is never taken for the baseline.
+	 */
+	long[] windowFirstByteTimes = new long[BASELINE_WINDOWS];
+	int baselineWindowCount = 0;
+	static final int BASELINE_WINDOWS = 32;
+	/**
+	 * Time to first byte above this multiple of the baseline is taken as congestion.
+	 */
+	static final int LATENCY_TOLERANCE = 2;
+
+	/**
+	 * Percentile of the observed times to first byte after which a download of the fastest priority without
+	 * response is hedged with a second attempt, 0 if downloads are not hedged.
+	 */
+	int hedgePercentile = 0;
+	/**
+	 * Hedges allowed, in percent of the downloads, so hedging never adds more than this fraction of traffic.
+	 */
+	int hedgeBudgetPercent = 0;
+	/**
+	 * Ring of the most recent times to first byte in milliseconds, and number of samples in it. Hedging starts
+	 * once HEDGE_MIN_SAMPLES are observed.
+	 */
+	long[] firstByteSamples = new long[HEDGE_SAMPLES];
+	int firstByteSampleCount = 0;
+	static final int HEDGE_SAMPLES = 128;
+	static final int HEDGE_MIN_SAMPLES = 20;
+	/**
+	 * Hedge synchronizing object, and the statistics.
+	 */
+	final Object mHedgeLock = new Object();
+	HedgeStats hedgeStats = new HedgeStats();
+	/**
+	 * Timer starting the hedges, created once hedging is enabled. Hedges are started off the main thread, so a 
+	 * busy UI never delays them.
+	 */
+	ScheduledExecutorService hedgeTimer;
+	/**
+	 * These are three priority values for image requests
+	 */
+	static int FASTEST_QUEUE = 3;
+	static int FASTER_QUEUE = 2;
+	static int FAST_QUEUE = 1;
+	/**
+	 * These are 3 concurrent linked queues representing three level priority queue, 
+	 * namely Fastest, Faster, Fast. They hold the imageObject {@link imageObject}
+	 */
+	ConcurrentLinkedQueue<Object> fastestQueue, fasterQueue, fastQueue;
+
+	/**
+	 * Flag indicating if downloads are dispatched earliest-deadline-first rather than by priority queues.
+	 */
+	boolean deadlineScheduling = false;
+	/**
+	 * Queue holding the imageObjects {@link imageObject} waiting for download in deadline scheduling mode, 
+	 * ordered by deadline.
+	 */
+	PriorityBlockingQueue<imageObject> deadlineQueue;
+	/**
+	 * Default deadline in milliseconds of requests of each priority, indexed by priority value.
+	 */
+	long[] priorityDeadlines = {0, 2000, 1000, 300};
+	/**
+	 * Time in milliseconds a request may be past its deadline when it is dispatched before it is dropped or demoted.
+	 */
+	long deadlineMissMargin = 1000;
+	/**
+	 * Flag indicating if requests past their deadline by more than the margin are dropped rather than demoted.
+	 */
+	boolean dropMissedDeadlines = false;
+	/**
+	 * Time in milliseconds added to the deadline of a demoted request, which puts it behind the requests still on time.
+	 */
+	static final long DEMOTE_PENALTY = 60*60*1000;
+	/**
+	 * Deadline statistics synchronizing object, and the statistics.
+	 */
+	final Object mDeadlineLock = new Object();
+	DeadlineStats deadlineStats = new DeadlineStats();
+
+	/**
+	 * Maximum number of retries of a download failing with a transient error.
+	 */
+	int maxDownloadRetries = 3;
+	/**
+	 * Base delay in milliseconds of the exponential retry backoff.
+	 */
+	long retryBaseDelay = 500;
+	/**
+	 * Handler used to queue downloads again once their backoff delay is over.
+	 */
+	Handler retryHandler;
+	static final Random retryJitter = new Random();
+	/**
+	 * Object representing a failed url in the negative cache.
+	 */
+	private static class failedUrl {
+		long until;
+		int errorCode;
+		failedUrl(long u, int e) {
+			until = u;
+			errorCode = e;
+		}
+	}
+	/**
+	 * Linked Hash Map storing the imageURL TO failedUrl {@link failedUrl} of urls which are not downloaded again till it expires.
+	 */
+	LinkedHashMap<String, failedUrl> negativeCache;
+	/**
+	 * Time in milliseconds a failed url stays in the negative cache, and maximum number of urls held by it.
+	 */
+	long negativeCacheTtl = 5*60*1000;
+	static final int NEGATIVE_CACHE_SIZE = 256;
+	/**
+	 * Image shown in the ImageView of a request without callback which failed, null to clear the ImageView.
+	 */
+	Bitmap errorBitmap;
+
+	
+	
+	/**
+	 * save thread synchronizing object.
+	 */
+	final Object mSaveImageLock = new Object();
+	/**
+	 * Save image thread counter. 
+	 */
+	int mSaveImageCounter = 0;
+	/**
+	 * File Directory pointer for storing the file-system cached images.
+	 */
+	File fileDir;
+	/**
+	 * Name of the directory within the application's cache directory holding the file-system cached images.
+	 * The recovery pass owns every file in it.
+	 */
+	static final String DISK_CACHE_DIR = "imageloader";
+	/**
+	 * Thread used to lazy saving of images to file-system
+	 */
+	Thread saveThread;
+	/** 
+	 * This is a concurrent linked queue holding imageObjects {@link imageObject} with images already download.
+	 * Used to store the imageBitmaps to file system 
+	 */
+	ConcurrentLinkedQueue<Object> saveQueue;
+
+	
+	
+	
+	/**
+	 * read from file system thread synchronizing object.
+	 */
+	final Object mReadImageLock = new Object();
+	/**
+	 * This is a concurrent linked queue holding imageObjects {@link imageObject} with images being loaded from the file-system.
+	 */
+	ConcurrentLinkedQueue<Object> readQueue;
+	/** 
+	 * Flag indicating if the file-system read thread is instantiated or not.
+	 */
+	boolean mReadImageFlag = false;
+	/**
+	 * This is a concurrent linked queue holding imageObjects {@link imageObject} preloaded from the snapshot. 
+	 * Read only when readQueue is empty.
+	 */
+	ConcurrentLinkedQueue<Object> preloadQueue;
+
+	/**
+	 * Journal of the file-system cache, in the file-system cache directory. Every committed entry is appended as 
+	 * "C name length" and every deleted one as "D name". It is compacted by the recovery pass at startup.
+	 */
+	static final String JOURNAL_FILE = "imageloader.journal";
+	/**
+	 * Journal synchronizing object. Held while an entry is renamed into place and journaled, so the recovery 
+	 * pass never sees a committed entry without its journal line. Shared by all instances on the directory.
+	 */
+	Object mJournalLock;
+	/**
+	 * Every file-system cache entry ends with a footer of the length and CRC32 of the image data and a magic number.
+	 */
+	static final int FOOTER_SIZE = 8 + 8 + 4;
+	static final int FOOTER_MAGIC = 0x494c4631;
+
+	/**
+	 * This is an internal class holding the state of a file-system cache directory, shared by all instances 
+	 * built on the same directory, so they journal under one lock and keep one index. The directory is 
+	 * recovered once per process, by the first instance opening it.
+	 */
+	static class diskCacheState {
+		final Object journalLock = new Object();
+		final Object indexLock = new Object();
+		HashSet<String> index;
+		BloomFilter bloomFilter;
+		boolean loaded;
+	}
+	/**
+	 * Hash-map maintaining canonical path of a file-system cache directory TO its state {@link diskCacheState}.
+	 * States are kept for the life of the process, as requests of a released instance may still write.
+	 */
+	static final HashMap<String, diskCacheState> diskCacheStates = new HashMap<String, diskCacheState>();
+	diskCacheState diskState;
 
-			imageCache = new LinkedHashMap<String, imageObject>(200, 0.75f, true);
-			tagMap = new HashMap<String, ArrayList<String>>();
-			ArrayList<String> defaultList = new ArrayList<String>();
-			tagMap.put("default", defaultList);
+	/**
+	 * In-memory index of the names of the committed file-system cache entries, so requests missing the memory
+	 * cache never probe the file-system on the calling thread. It is loaded by the recovery pass at startup and
+	 * kept up to date by every commit and delete. Null if a Bloom filter is used instead.
+	 */
+	HashSet<String> diskIndex;
+	/**
+	 * Bloom filter of the names of the committed file-system cache entries, used instead of the exact index
+	 * for very large caches. Deleted entries are never removed from it, so a false positive costs a read 
+	 * attempt on the read worker, which downloads the image once it finds no entry.
+	 */
+	BloomFilter diskBloomFilter;
+	/**
+	 * Disk index synchronizing object, never held while touching the file-system. The flag of the shared state
+	 * indicating the recovery pass has loaded the index is guarded by it too, till then every entry is 
+	 * reported as possibly present and probed on the read worker.
+	 */
+	Object mDiskIndexLock;
 
-			fastestQueue = new ConcurrentLinkedQueue<Object>();
-			fasterQueue = new ConcurrentLinkedQueue<Object>();
-			fastQueue = new ConcurrentLinkedQueue<Object>();
+	/**
+	 * This is a Bloom filter of strings, hashed twice from their hash code by double hashing.
+	 */
+	static class BloomFilter {
+		final long[] bits;
+		final int numBits;
+		final int numHashes;
 
-			saveQueue = new ConcurrentLinkedQueue<Object>();
-			readQueue = new ConcurrentLinkedQueue<Object>();
+		/**
+		 * @param expectedEntries number of entries the filter is sized for
+		 * @param falsePositiveRate rate of false positives once it holds the expected entries
+		 */
+		BloomFilter(int expectedEntries, double falsePositiveRate) {
+			int n = Math.max(1, expectedEntries);
+			numBits = (int) Math.max(64, Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+			numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+			bits = new long[(numBits + 63) / 64];
+		}
 
-			mSaveImageCounter = 0;
-			mTaskCounter = 0;
-			fileDir = context.getCacheDir();
-			if (!fileDir.exists()) {
-				fileDir.mkdirs();
+		void add(String key) {
+			int h1 = key.hashCode();
+			int h2 = mix(h1);
+			for(int i = 0; i < numHashes; i++) {
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+				bits[bit >>> 6] |= 1L << bit;
 			}
+		}
 
-			ActivityManager activityManager = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
-			int memoryClass = activityManager.getMemoryClass();
-			imageCacheUpperLimit = 1024*1024*(memoryClass/4);
-			imageCacheLowerLimit = 1024*1024*(memoryClass/4 - 4);
+		boolean mightContain(String key) {
+			int h1 = key.hashCode();
+			int h2 = mix(h1);
+			for(int i = 0; i < numHashes; i++) {
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+				if((bits[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
 
-			imageViewUpdateTimeMap = new HashMap<ImageView, Long>();
+		/**
+		 * @return second hash derived from the first, odd so every probe sequence covers distinct bits.
+		 */
+		static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h | 1;
 		}
-		return ILRef;
 	}
 
-    /**
-     * converts the image url into a file name to be used to store the image to file system
-     *
-     * @param imageUrl Image url of the image
-     * @return string name equivalent of the url converted by replacing / with .
-     */
-	private static String convertImageUrl(String imageUrl) {
-		String[] tokens = imageUrl.split("//", 2);
-		if(tokens.length >= 2 && tokens[1] != null) {
-			return tokens[1].replace('/', '.');
-		} else {
-			return imageUrl;
+	/**
+	 * File the snapshot of the hot set of images is persisted to, in the file-system cache directory.
+	 */
+	static final String SNAPSHOT_FILE = "imageloader.snapshot";
+	/**
+	 * Number of images kept in the snapshot, 0 if snapshots are disabled.
+	 */
+	int snapshotSize = 0;
+	/**
+	 * Interval in milliseconds the snapshot is persisted at, if the memory cache changed meanwhile.
+	 */
+	static final long SNAPSHOT_INTERVAL = 60*1000;
+	/**
+	 * Flag indicating the memory cache changed since the last snapshot.
+	 */
+	boolean snapshotDirty = false;
+
+	
+	
+	/** 
+	 * Private constructor, instances are made by {@link Builder}.
+	 *
+	 * @param builder builder holding the configuration of the instance.
+	 */
+	private ImageLoader(Builder builder) {
+		appContext = builder.context.getApplicationContext();
+
+		imageCache = new LinkedHashMap<String, imageObject>(200, 0.75f, true);
+		encodedCache = new LinkedHashMap<String, encodedEntry>(200, 0.75f, true);
+		tagMap = new HashMap<String, HashSet<String>>();
+		keyTagMap = new HashMap<String, HashSet<String>>();
+		variantMap = new HashMap<String, ArrayList<String>>();
+		tagConfigMap = new HashMap<String, Bitmap.Config>();
+		tagQuotaMap = new HashMap<String, tagQuota>();
+
+		fastestQueue = new ConcurrentLinkedQueue<Object>();
+		fasterQueue = new ConcurrentLinkedQueue<Object>();
+		fastQueue = new ConcurrentLinkedQueue<Object>();
+		deadlineQueue = new PriorityBlockingQueue<imageObject>(64, deadlineComparator);
+		retryHandler = new Handler(Looper.getMainLooper());
+		downloadExecutor = builder.downloadExecutor != null ? builder.downloadExecutor : Executors.newCachedThreadPool();
+		taskExecutor = builder.taskExecutor != null ? builder.taskExecutor : Executors.newCachedThreadPool();
+		transport = builder.transport != null ? builder.transport : DEFAULT_TRANSPORT;
+		fetcherMap = new HashMap<String, Fetcher>();
+		fetcherMap.put("file", new Fetcher() {
+			public InputStream open(String imageUrl) throws IOException {
+				if(imageUrl.startsWith(ASSET_PREFIX)) {
+					return appContext.getAssets().open(Uri.parse(imageUrl).getPath().substring(ASSET_PREFIX.length() - "file://".length()));
+				}
+				return new FileInputStream(Uri.parse(imageUrl).getPath());
+			}
+		});
+		fetcherMap.put("content", new Fetcher() {
+			public InputStream open(String imageUrl) throws IOException {
+				InputStream is = appContext.getContentResolver().openInputStream(Uri.parse(imageUrl));
+				if(is == null) {
+					throw new IOException("No content for " + imageUrl);
+				}
+				return is;
+			}
+		});
+		fetcherMap.put("data", DATA_FETCHER);
+		fetcherMap.putAll(builder.fetchers);
+		bitmapPool = builder.bitmapPool;
+		negativeCache = new LinkedHashMap<String, failedUrl>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, failedUrl> eldest) {
+				return size() > NEGATIVE_CACHE_SIZE;
+			}
+		};
+
+		saveQueue = new ConcurrentLinkedQueue<Object>();
+		readQueue = new ConcurrentLinkedQueue<Object>();
+		preloadQueue = new ConcurrentLinkedQueue<Object>();
+
+		fileDir = builder.diskCacheDir != null ? builder.diskCacheDir : new File(builder.context.getCacheDir(), DISK_CACHE_DIR);
+		if (!fileDir.exists()) {
+			fileDir.mkdirs();
+		}
+
+		if(builder.memoryBudget > 0) {
+			imageCacheFullUpperLimit = builder.memoryBudget;
+			imageCacheFullLowerLimit = builder.memoryBudget - Math.min(4*1024*1024, builder.memoryBudget / 4);
+		} else {
+			ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+			int memoryClass = activityManager.getMemoryClass();
+			imageCacheFullUpperLimit = 1024*1024*(memoryClass/4);
+			imageCacheFullLowerLimit = 1024*1024*(memoryClass/4 - 4);
+		}
+		encodedCacheFullLimit = builder.encodedCacheBudget >= 0 ? builder.encodedCacheBudget : imageCacheFullUpperLimit / 8;
+		memoryBudgetPercent = 100;
+		applyMemoryBudget();
+
+		defaultConfig = builder.defaultConfig;
+		minTaskLimit = builder.minConcurrency;
+		maxTaskLimit = builder.maxConcurrency;
+		mTaskLimit = Math.max(minTaskLimit, Math.min(maxTaskLimit, mTaskLimit));
+		maxDownloadRetries = builder.maxRetries;
+		retryBaseDelay = builder.retryBaseDelay;
+		negativeCacheTtl = builder.negativeCacheTtl;
+		errorBitmap = builder.errorBitmap;
+		streamToDisk = builder.streamToDisk;
+		resumeDownloads = builder.resumeDownloads;
+		setHedging(builder.hedgePercentile, builder.hedgeBudgetPercent);
+		transformDiskCache = builder.transformDiskCache;
+		variantDiskThreshold = builder.variantDiskThreshold;
+
+		viewStateMap = new WeakHashMap<ImageView, viewState>();
+		viewLeaseRefs = new HashSet<viewLeaseRef>();
+		collectedViews = new ReferenceQueue<ImageView>();
+		bitmapOwnerMap = new HashMap<Bitmap, imageObject>();
+		watchedImageViews = new WeakHashMap<ImageView, Boolean>();
+
+		if(Build.VERSION.SDK_INT >= 14) {
+			memoryListener = new memoryCallbacks();
+			appContext.registerComponentCallbacks(memoryListener);
+		}
+
+		String dirKey;
+		try {
+			dirKey = fileDir.getCanonicalPath();
+		} catch (IOException e) {
+			dirKey = fileDir.getAbsolutePath();
+		}
+		boolean recover = false;
+		synchronized (diskCacheStates) {
+			diskState = diskCacheStates.get(dirKey);
+			if(diskState == null) {
+				/* Note : index kind is chosen by the first instance on the directory */
+				diskState = new diskCacheState();
+				if(builder.diskIndexBloomEntries > 0) {
+					diskState.bloomFilter = new BloomFilter(builder.diskIndexBloomEntries, 0.01);
+				} else {
+					diskState.index = new HashSet<String>();
+				}
+				diskCacheStates.put(dirKey, diskState);
+				recover = true;
+			}
+		}
+		mJournalLock = diskState.journalLock;
+		mDiskIndexLock = diskState.indexLock;
+		diskIndex = diskState.index;
+		diskBloomFilter = diskState.bloomFilter;
+		if(recover) {
+			new RecoverDiskCacheTask().executeOnExecutor(taskExecutor, (Void[])(null));
+		}
+
+		snapshotSize = builder.preloadCount;
+		if(snapshotSize > 0) {
+			new LoadSnapshotTask().executeOnExecutor(taskExecutor, (Void[])(null));
+			retryHandler.postDelayed(snapshotRunnable, SNAPSHOT_INTERVAL);
+		}
+	}
+
+	/**
+	 * Builder of ImageLoader instances. Every instance has its own memory cache and budget, file-system cache, 
+	 * executors, transport and policies, so parts of an application with different needs, like a feed of small 
+	 * avatars and a full-screen gallery, do not compete for one cache or one pool of download threads. Instances 
+	 * only share what is passed to more than one builder, like a {@link BitmapPool}. Two instances must not use 
+	 * the same file-system cache directory at the same time, as each recovers and journals its directory alone.
+	 */
+	public static class Builder {
+		Context context;
+		long memoryBudget = 0;
+		long encodedCacheBudget = -1;
+		File diskCacheDir;
+		Executor downloadExecutor;
+		Executor taskExecutor;
+		int minConcurrency = 2;
+		int maxConcurrency = 8;
+		Transport transport;
+		HashMap<String, Fetcher> fetchers = new HashMap<String, Fetcher>();
+		BitmapPool bitmapPool;
+		Bitmap.Config defaultConfig = Bitmap.Config.ARGB_8888;
+		int maxRetries = 3;
+		long retryBaseDelay = 500;
+		long negativeCacheTtl = 5*60*1000;
+		Bitmap errorBitmap;
+		boolean streamToDisk = false;
+		boolean resumeDownloads = false;
+		int hedgePercentile = 0;
+		int hedgeBudgetPercent = 0;
+		boolean transformDiskCache = false;
+		long variantDiskThreshold = 0;
+		int preloadCount = 0;
+		int diskIndexBloomEntries = 0;
+
+		/**
+		 * @param context application's context. Used to get the file-system access and the memory class.
+		 */
+		public Builder(Context context) {
+			this.context = context;
+		}
+
+		/**
+		 * sets the budget of the bitmap cache. Defaults to a quarter of the memory class of the application.
+		 *
+		 * @param bytes bytes of decoded bitmaps kept in memory.
+		 * @return this builder
+		 */
+		public Builder setMemoryBudget(long bytes) {
+			memoryBudget = bytes;
+			return this;
+		}
+
+		/**
+		 * sets the budget of the encoded cache {@link ImageLoader#setEncodedCacheLimit(long)}. Defaults to one
+		 * eighth of the bitmap cache budget.
+		 *
+		 * @param bytes budget of the encoded cache in bytes, 0 to disable it.
+		 * @return this builder
+		 */
+		public Builder setEncodedCacheBudget(long bytes) {
+			encodedCacheBudget = bytes;
+			return this;
+		}
+
+		/**
+		 * sets the directory of the file-system cache. Defaults to the imageloader directory in the application's
+		 * cache directory. The recovery pass owns every file in it. Instances on the same directory share its 
+		 * journal and index, budgets of their own need directories of their own.
+		 *
+		 * @param dir directory of the file-system cache.
+		 * @return this builder
+		 */
+		public Builder setDiskCacheDir(File dir) {
+			diskCacheDir = dir;
+			return this;
+		}
+
+		/**
+		 * sets the executor the downloads run on. Defaults to a thread pool of the instance, the number of 
+		 * downloads in parallel is bounded by the concurrency bounds either way.
+		 *
+		 * @param executor executor of the downloads.
+		 * @return this builder
+		 */
+		public Builder setDownloadExecutor(Executor executor) {
+			downloadExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * sets the executor the file-system reads, saves and maintenance tasks run on. Defaults to a thread pool
+		 * of the instance. The save task waits for the downloads in flight, so the executor has to run more
+		 * than one task in parallel.
+		 *
+		 * @param executor executor of the file-system tasks.
+		 * @return this builder
+		 */
+		public Builder setTaskExecutor(Executor executor) {
+			taskExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * sets the bounds of the number of downloads in parallel {@link ImageLoader#setConcurrencyBounds(int, int)}.
+		 *
+		 * @param min minimum number of parallel downloads, at least 1.
+		 * @param max maximum number of parallel downloads.
+		 * @return this builder
+		 */
+		public Builder setConcurrencyBounds(int min, int max) {
+			minConcurrency = Math.max(1, min);
+			maxConcurrency = Math.max(minConcurrency, max);
+			return this;
+		}
+
+		/**
+		 * sets the transport opening the connections of the downloads.
+		 *
+		 * @param transport transport of the downloads.
+		 * @return this builder
+		 */
+		public Builder setTransport(Transport transport) {
+			this.transport = transport;
+			return this;
+		}
+
+		/**
+		 * registers the fetcher of a local source, replacing the built-in fetcher of the scheme if there is one.
+		 * Remote images are not fetched this way, their transport is set by {@link #setTransport(Transport)}.
+		 *
+		 * @param scheme url scheme, like "file" or "content".
+		 * @param fetcher fetcher of the urls of the scheme.
+		 * @return this builder
+		 */
+		public Builder registerFetcher(String scheme, Fetcher fetcher) {
+			scheme = scheme.toLowerCase(Locale.US);
+			if(scheme.equals("http") || scheme.equals("https")) {
+				throw new IllegalArgumentException("Remote images are fetched through the transport");
+			}
+			fetchers.put(scheme, fetcher);
+			return this;
+		}
+
+		/**
+		 * sets the pool of bitmaps reused as decode targets. The same pool may be passed to several builders.
+		 *
+		 * @param pool bitmap pool, null for none.
+		 * @return this builder
+		 */
+		public Builder setBitmapPool(BitmapPool pool) {
+			bitmapPool = pool;
+			return this;
+		}
+
+		/**
+		 * sets the bitmap config used for requests which do not pass one {@link ImageLoader#setDefaultConfig(Bitmap.Config)}.
+		 *
+		 * @param config bitmap config to decode with, null for automatic selection.
+		 * @return this builder
+		 */
+		public Builder setDefaultConfig(Bitmap.Config config) {
+			defaultConfig = config;
+			return this;
+		}
+
+		/**
+		 * sets retries and negative cache of failed downloads {@link ImageLoader#setRetryPolicy(int, long, long)}.
+		 *
+		 * @param maxRetries maximum number of retries of a download, 0 to not retry.
+		 * @param baseDelay delay in milliseconds before the first retry.
+		 * @param negativeTtl time in milliseconds a failed url stays in the negative cache, 0 to not cache failures.
+		 * @return this builder
+		 */
+		public Builder setRetryPolicy(int maxRetries, long baseDelay, long negativeTtl) {
+			this.maxRetries = maxRetries;
+			retryBaseDelay = baseDelay;
+			negativeCacheTtl = negativeTtl;
+			return this;
+		}
+
+		/**
+		 * sets the image shown for failed requests without callback {@link ImageLoader#setErrorImage(Bitmap)}.
+		 *
+		 * @param bitmap image shown in the ImageView, null to clear it.
+		 * @return this builder
+		 */
+		public Builder setErrorImage(Bitmap bitmap) {
+			errorBitmap = bitmap;
+			return this;
+		}
+
+		/**
+		 * sets if downloads are streamed to the file-system before decoding {@link ImageLoader#setStreamToDisk(boolean)}.
+		 *
+		 * @param enabled true to stream downloads to file-system.
+		 * @return this builder
+		 */
+		public Builder setStreamToDisk(boolean enabled) {
+			streamToDisk = enabled;
+			return this;
+		}
+
+		/**
+		 * sets if interrupted downloads are resumed with range requests {@link ImageLoader#setResumeDownloads(boolean)}.
+		 *
+		 * @param enabled true to resume interrupted downloads.
+		 * @return this builder
+		 */
+		public Builder setResumeDownloads(boolean enabled) {
+			resumeDownloads = enabled;
+			return this;
+		}
+
+		/**
+		 * sets hedging of downloads of the fastest priority {@link ImageLoader#setHedging(int, int)}.
+		 *
+		 * @param percentile percentile of the times to first byte after which downloads are hedged, 0 to disable.
+		 * @param budgetPercent most hedges in percent of the downloads.
+		 * @return this builder
+		 */
+		public Builder setHedging(int percentile, int budgetPercent) {
+			hedgePercentile = percentile;
+			hedgeBudgetPercent = budgetPercent;
+			return this;
+		}
+
+		/**
+		 * sets if transformed images are written to the file-system cache {@link ImageLoader#setTransformDiskCache(boolean)}.
+		 *
+		 * @param enabled true to write transformed images to the file-system cache.
+		 * @return this builder
+		 */
+		public Builder setTransformDiskCache(boolean enabled) {
+			transformDiskCache = enabled;
+			return this;
+		}
+
+		/**
+		 * sets the largest derived variant written to the file-system cache {@link ImageLoader#setVariantDiskThreshold(long)}.
+		 *
+		 * @param bytes largest decoded size of variants written, 0 to keep derived variants in memory only.
+		 * @return this builder
+		 */
+		public Builder setVariantDiskThreshold(long bytes) {
+			variantDiskThreshold = bytes;
+			return this;
+		}
+
+		/**
+		 * sets the number of images kept in the snapshot and preloaded at startup {@link ImageLoader#initialize(Context, int)}.
+		 *
+		 * @param count number of images, 0 to disable warm-start.
+		 * @return this builder
+		 */
+		public Builder setPreloadCount(int count) {
+			preloadCount = count;
+			return this;
+		}
+
+		/**
+		 * makes the index of the file-system cache a Bloom filter instead of an exact set of entry names, which
+		 * takes about ten bits per entry for caches of very many images. A false positive, or an entry deleted
+		 * since, costs a read attempt on the read worker before the image is downloaded.
+		 *
+		 * @param expectedEntries number of file-system cache entries the filter is sized for, 0 for the exact index.
+		 * @return this builder
+		 */
+		public Builder setDiskIndexBloomFilter(int expectedEntries) {
+			diskIndexBloomEntries = expectedEntries;
+			return this;
+		}
+
+		/**
+		 * @return new ImageLoader instance with the configuration of this builder.
+		 */
+		public ImageLoader build() {
+			return new ImageLoader(this);
+		}
+	}
+
+    /**
+     * initializes the shared image loader and its internal structures. Parts of the application which need their 
+     * own budget, disk cache or executors build their own instances with {@link Builder} instead.
+     *
+     * @param context - context is application's base context. Used to get the file-system access.
+     * @return returns the reference to the ImageLoader object used for further APIs.
+     */
+	public static ImageLoader initialize(Context context) {
+		return initialize(context, 0);
+	}
+
+    /**
+     * initializes the shared image loader and its internal structures, and warm-starts the in-memory cache. Keys of 
+     * the most recently and frequently used images are persisted to a snapshot file periodically, and once initialized
+     * the top of the last snapshot is preloaded from the file-system cache in background, behind any requested image.
+     *
+     * @param context - context is application's base context. Used to get the file-system access.
+     * @param preloadCount - number of images kept in the snapshot and preloaded, 0 to disable warm-start.
+     * @return returns the reference to the ImageLoader object used for further APIs.
+     */
+	public static ImageLoader initialize(Context context, int preloadCount) {
+		if(ILRef == null) {
+			ILRef = new Builder(context).setPreloadCount(preloadCount).build();
+		}
+		return ILRef;
+	}
+
+	/**
+	 * This API releases an instance which is no longer needed. It stops listening for memory callbacks, persists
+	 * the snapshot and drops the memory and encoded caches. Requests in flight still complete, the file-system 
+	 * cache is kept for the next instance built on the same directory, which shares its journal lock and index
+	 * with any instance still open on it. The instance must not be used afterwards.
+	 */
+	public void release() {
+		if(memoryListener != null) {
+			appContext.unregisterComponentCallbacks(memoryListener);
+		}
+		retryHandler.removeCallbacks(snapshotRunnable);
+		saveSnapshot();
+		synchronized (mCacheLock) {
+			decache();
+		}
+		setEncodedCacheLimit(0);
+		synchronized (mHedgeLock) {
+			if(hedgeTimer != null) {
+				hedgeTimer.shutdownNow();
+				hedgeTimer = null;
+			}
+		}
+		if(ILRef == this) {
+			ILRef = null;
+		}
+	}
+
+    /**
+     * converts the image url into a file name to be used to store the image to file system
+     *
+     * @param imageUrl Image url of the image
+     * @return string name equivalent of the url converted by replacing / with .
+     */
+	private static String convertImageUrl(String imageUrl) {
+		String[] tokens = imageUrl.split("//", 2);
+		if(tokens.length >= 2 && tokens[1] != null) {
+			return tokens[1].replace('/', '.');
+		} else {
+			return imageUrl;
+		}
+	}
+
+	/**
+	 * builds the key identifying a decoded variant of an image url. The default variant (no scaling, no target 
+	 * size and ARGB_8888 config) is keyed by the plain url, as in earlier versions.
+	 *
+	 * @param imageUrl Image url of the image
+	 * @param scale scaling factor the image is decoded with
+	 * @param targetWidth target width the image is decoded for, 0 if none
+	 * @param targetHeight target height the image is decoded for, 0 if none
+	 * @param config bitmap config the image is decoded with, null if automatic
+	 * @return cache key of the variant
+	 */
+	static String buildCacheKey(String imageUrl, int scale, int targetWidth, int targetHeight, Bitmap.Config config) {
+		if(scale <= 1 && targetWidth <= 0 && targetHeight <= 0 && config == Bitmap.Config.ARGB_8888) {
+			return imageUrl;
+		}
+		return imageUrl + "@s" + scale + "w" + targetWidth + "h" + targetHeight + (config != null ? config : "AUTO");
+	}
+
+	/**
+	 * builds the key identifying a transformed variant of an image url, the key of the decoded variant followed
+	 * by the keys of the transformation chain in order.
+	 *
+	 * @param imageUrl Image url of the image
+	 * @param scale scaling factor the image is decoded with
+	 * @param targetWidth target width the image is decoded for, 0 if none
+	 * @param targetHeight target height the image is decoded for, 0 if none
+	 * @param config bitmap config the image is decoded with, null if automatic
+	 * @param transformations transformation chain applied to the decoded image
+	 * @return cache key of the transformed variant
+	 */
+	static String buildTransformedKey(String imageUrl, int scale, int targetWidth, int targetHeight, Bitmap.Config config, Transformation[] transformations) {
+		StringBuilder key = new StringBuilder(imageUrl);
+		key.append("@s").append(scale).append("w").append(targetWidth).append("h").append(targetHeight).append(config != null ? config : "AUTO");
+		key.append("@t");
+		for(int i = 0; i < transformations.length; i++) {
+			if(i > 0) {
+				key.append(',');
+			}
+			key.append(transformations[i].key());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Pattern of the keys of variants, capturing the image url.
+	 */
+	static final Pattern VARIANT_KEY = Pattern.compile("(.*)@s\\d+w\\d+h\\d+[A-Z_0-9]+(@t.*)?");
+
+	/**
+	 * extracts the image url from the key of one of its variants.
+	 *
+	 * @param cacheKey cache key built by {@link #buildCacheKey(String, int, int, int, Bitmap.Config)} or 
+	 * {@link #buildTransformedKey(String, int, int, int, Bitmap.Config, Transformation[])}
+	 * @return image url of the variant
+	 */
+	static String imageUrlOfKey(String cacheKey) {
+		Matcher matcher = VARIANT_KEY.matcher(cacheKey);
+		if(matcher.matches() && matcher.group(1).length() > 0) {
+			return matcher.group(1);
+		}
+		return cacheKey;
+	}
+
+	/**
+	 * calculates the power of two sample size which decodes an image of given dimensions as small as possible 
+	 * while still covering the target dimensions. Never returns less than the minimum sample size.
+	 *
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param targetWidth target width, 0 if none
+	 * @param targetHeight target height, 0 if none
+	 * @param minSampleSize minimum sample size
+	 * @return sample size to decode with
+	 */
+	static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight, int minSampleSize) {
+		int sampleSize = 1;
+		if(width > 0 && height > 0 && (targetWidth > 0 || targetHeight > 0)) {
+			while((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth) 
+					&& (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight)) {
+				sampleSize *= 2;
+			}
+		}
+		return Math.max(sampleSize, minSampleSize);
+	}
+
+	/**
+	 * sets the bitmap config used for requests which do not pass one explicitly and whose tag has no config set.
+	 *
+	 * @param config bitmap config to decode with, null for automatic selection based on the image's alpha channel.
+	 */
+	public void setDefaultConfig(Bitmap.Config config) {
+		defaultConfig = config;
+	}
+
+	/**
+	 * sets the bitmap config used for requests with the given tag which do not pass one explicitly.
+	 *
+	 * @param tag tag string the config applies to.
+	 * @param config bitmap config to decode with, null for automatic selection based on the image's alpha channel.
+	 */
+	public void setTagConfig(String tag, Bitmap.Config config) {
+		tagConfigMap.put(tag != null ? tag : "default", config);
+	}
+
+	/**
+	 * This API lets user set a quota of the memory cache for the images loaded with a tag, to keep workloads of
+	 * different screens from evicting each other. A tag is guaranteed its minimum share, and may borrow capacity
+	 * left unused by other tags up to its maximum. When the cache is purged, images of tags using more than their
+	 * minimum are evicted first, in least recently used order, and only then the others. A tag reaching its 
+	 * maximum evicts its own images. Both are scaled down with the memory budget on memory pressure, and 
+	 * minimums adding up to more than the budget cannot all be guaranteed.
+	 *
+	 * @param tag tag string the quota applies to.
+	 * @param minimum bytes of images of the tag which are not evicted for other tags, 0 for none.
+	 * @param maximum bytes of images of the tag kept at most, 0 to borrow without limit.
+	 */
+	public void setTagQuota(String tag, long minimum, long maximum) {
+		tag = tag != null ? tag : "default";
+		synchronized (mCacheLock) {
+			tagQuota quota = tagQuotaMap.get(tag);
+			if(quota == null) {
+				quota = new tagQuota();
+				tagQuotaMap.put(tag, quota);
+			}
+			if(quota.isSet()) {
+				tagQuotaCount--;
+			}
+			quota.minimum = Math.max(0, minimum);
+			quota.maximum = Math.max(0, maximum);
+			if(quota.isSet()) {
+				tagQuotaCount++;
+			}
+			trimTag(tag, null);
+		}
+	}
+
+	/**
+	 * removes the quota set for the tag, its images are then evicted like those of any tag without quota.
+	 *
+	 * @param tag tag string to remove the quota of.
+	 */
+	public void clearTagQuota(String tag) {
+		setTagQuota(tag, 0, 0);
+	}
+
+	/**
+	 * takes a lease on a bitmap delivered by the loader, which keeps it from being purged and from being reused
+	 * by the bitmap pool till the lease is released. Needed for bitmaps delivered to callbacks without ImageView 
+	 * and kept beyond the callback, bitmaps shown in an ImageView by the loader are leased to it already.
+	 *
+	 * @param bitmap bitmap delivered by the loader
+	 * @return lease on the bitmap, null if it is not held by the memory cache.
+	 */
+	public BitmapLease acquireLease(Bitmap bitmap) {
+		synchronized (mCacheLock) {
+			imageObject iO = bitmapOwnerMap.get(bitmap);
+			if(iO == null) {
+				return null;
+			}
+			acquireLease(iO);
+			return new BitmapLease(this, iO);
+		}
+	}
+
+	/**
+	 * releases the lease of an ImageView on the bitmap the loader last showed in it and forgets its pending 
+	 * requests. The lease of an ImageView is released anyway once it is garbage collected, calling this when 
+	 * the ImageView is no longer shown, e.g. when its activity is destroyed, lets the bitmap be purged sooner.
+	 *
+	 * @param iv ImageView
+	 */
+	public void releaseImageView(ImageView iv) {
+		viewState state = viewStateMap.remove(iv);
+		if(state != null && state.lease != null) {
+			synchronized (mCacheLock) {
+				viewLeaseRefs.remove(state.ref);
+				state.ref = null;
+				releaseLease(state.lease);
+				state.lease = null;
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to release the leases of the ImageViews garbage collected since the last call.
+	 * Must be called with the cache lock held.
+	 */
+	private void releaseCollectedViews() {
+		viewLeaseRef ref;
+		while((ref = (viewLeaseRef) collectedViews.poll()) != null) {
+			viewLeaseRefs.remove(ref);
+			if(ref.state.lease != null) {
+				releaseLease(ref.state.lease);
+				ref.state.lease = null;
+			}
+		}
+	}
+
+	/**
+	 * @return bytes of the bitmaps resident in memory for the loader, the memory cache as well as the purged 
+	 * images still leased by ImageViews or users.
+	 */
+	public long getResidentMemory() {
+		synchronized (mCacheLock) {
+			releaseCollectedViews();
+			return imageCacheSize;
+		}
+	}
+
+	/**
+	 * @param tag tag string
+	 * @return bytes of the images in the memory cache accounted to the tag.
+	 */
+	public long getTagMemoryUsage(String tag) {
+		synchronized (mCacheLock) {
+			tagQuota quota = tagQuotaMap.get(tag != null ? tag : "default");
+			return quota != null ? quota.size : 0;
+		}
+	}
+
+	/**
+	 * removes the bitmap config set for the tag, so its requests fall back to the default config.
+	 *
+	 * @param tag tag string to remove the config of.
+	 */
+	public void clearTagConfig(String tag) {
+		tagConfigMap.remove(tag != null ? tag : "default");
+	}
+
+	/**
+	 * resolves the bitmap config to decode an image with. For automatic config the image header is sniffed,
+	 * JPEGs and PNGs without alpha channel or transparency chunk are decoded as RGB_565, everything else as ARGB_8888.
+	 * The stream has to support mark and reset, it is reset to where it was before returning.
+	 *
+	 * @param config requested bitmap config, null if automatic
+	 * @param is stream of the encoded image
+	 * @return bitmap config to decode with
+	 */
+	static Bitmap.Config resolveConfig(Bitmap.Config config, InputStream is) throws IOException {
+		if(config != null) {
+			return config;
+		}
+		byte[] header = new byte[HEADER_SNIFF_LENGTH];
+		is.mark(HEADER_SNIFF_LENGTH);
+		int length = 0;
+		int n;
+		while(length < header.length && (n = is.read(header, length, header.length - length)) != -1) {
+			length += n;
+		}
+		is.reset();
+		return isOpaque(header, length) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+
+	/**
+	 * Number of bytes of the encoded image sniffed to decide if it is opaque.
+	 */
+	static final int HEADER_SNIFF_LENGTH = 4096;
+
+	/**
+	 * checks the header of an encoded image for an alpha channel. Only JPEGs and PNGs of truecolor or grayscale 
+	 * type without a tRNS chunk ahead of the image data are known to be opaque.
+	 *
+	 * @param header first bytes of the encoded image
+	 * @param length number of valid bytes in header
+	 * @return true if the image is known to have no alpha channel
+	 */
+	static boolean isOpaque(byte[] header, int length) {
+		if(length >= 2 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8) {
+			return true;
+		}
+		if(length < 33 || (header[0] & 0xff) != 0x89 || header[1] != 'P' || header[2] != 'N' || header[3] != 'G') {
+			return false;
+		}
+		/* Note : color type of the IHDR chunk, 0 is grayscale and 2 is truecolor, both without alpha */
+		int colorType = header[25] & 0xff;
+		if(colorType != 0 && colorType != 2) {
+			return false;
+		}
+		int offset = 8;
+		while(offset + 8 <= length) {
+			int chunkLength = ((header[offset] & 0xff) << 24) | ((header[offset + 1] & 0xff) << 16) 
+					| ((header[offset + 2] & 0xff) << 8) | (header[offset + 3] & 0xff);
+			String type = new String(header, offset + 4, 4);
+			if(type.equals("tRNS")) {
+				return false;
+			} else if(type.equals("IDAT")) {
+				return true;
+			}
+			if(chunkLength < 0) {
+				return false;
+			}
+			offset += 12 + chunkLength;
+		}
+		return false;
+	}
+
+	/**
+	 * decodes an image from the file-system cache with the config requested by the imageObject, verifying 
+	 * the length and checksum of its footer.
+	 *
+	 * @param iO imageObject holding the file and requested config.
+	 * @return decoded bitmap, null if the file is corrupt or could not be decoded.
+	 */
+	static Bitmap decodeFile(imageObject iO) {
+		/* Note : entries without valid footer, wrong length or wrong checksum are treated as corrupt */
+		Bitmap bitmap = null;
+		InputStream is = null;
+		try {
+			long length = iO.file.length() - FOOTER_SIZE;
+			if(length <= 0) {
+				return null;
+			}
+			long crc;
+			RandomAccessFile raf = new RandomAccessFile(iO.file, "r");
+			try {
+				raf.seek(length);
+				if(raf.readLong() != length) {
+					return null;
+				}
+				crc = raf.readLong();
+				if(raf.readInt() != FOOTER_MAGIC) {
+					return null;
+				}
+			} finally {
+				raf.close();
+			}
+			CheckedInputStream checked = new CheckedInputStream(new BoundedInputStream(new FileInputStream(iO.file), length), new CRC32());
+			is = new BufferedInputStream(checked, HEADER_SNIFF_LENGTH);
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = resolveConfig(iO.config, is);
+			bitmap = BitmapFactory.decodeStream(is, null, options);
+			/* Note : decoder may stop short of the end, checksum covers the whole image data */
+			long skipped;
+			do {
+				skipped = is.skip(BUFFER_SIZE);
+			} while(skipped > 0 || is.read() != -1);
+			if(checked.getChecksum().getValue() != crc && bitmap != null) {
+				bitmap.recycle();
+				bitmap = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * This API is internally used to get the download queue of a priority.
+	 *
+	 * @param loadPriority image loading priority
+	 * @return queue holding the requests of that priority, null if priority is not valid.
+	 */
+	ConcurrentLinkedQueue<Object> queueFor(int loadPriority) {
+		if(loadPriority == FASTEST_QUEUE) {
+			return fastestQueue;
+		} else if(loadPriority == FASTER_QUEUE) {
+			return fasterQueue;
+		} else if(loadPriority == FAST_QUEUE) {
+			return fastQueue;
+		}
+		return null;
+	}
+
+	/**
+	 * Comparator ordering the deadline queue by deadline.
+	 */
+	static final Comparator<imageObject> deadlineComparator = new Comparator<imageObject>() {
+		@Override
+		public int compare(imageObject lhs, imageObject rhs) {
+			return lhs.queueDeadline < rhs.queueDeadline ? -1 : (lhs.queueDeadline == rhs.queueDeadline ? 0 : 1);
+		}
+	};
+
+	/**
+	 * This API lets user switch the dispatching of downloads to earliest-deadline-first. Every request gets the 
+	 * default deadline of its priority {@link #setPriorityDeadline(int, long)} unless set through its handle.
+	 * Requests which are already past their deadline by more than the margin when dispatched are either dropped, 
+	 * in which case their callbacks get {@link ImageLoaderCallback#OnError} with {@link #ERROR_DROPPED}, or 
+	 * demoted behind all requests still on time.
+	 * 
+	 * @param enabled true to dispatch by deadline, false to dispatch by priority queues.
+	 * @param missMargin time in milliseconds a request may be past its deadline before it is dropped or demoted.
+	 * @param dropMissed true to drop requests missing the margin, false to demote them.
+	 */
+	public void setDeadlineScheduling(boolean enabled, long missMargin, boolean dropMissed) {
+		deadlineMissMargin = missMargin;
+		dropMissedDeadlines = dropMissed;
+		deadlineScheduling = enabled;
+	}
+
+	/**
+	 * This API lets user set the default deadline of requests of a priority in deadline scheduling mode.
+	 * 
+	 * @param loadPriority image loading priority
+	 * @param millis time in milliseconds from the request the image should be loaded within.
+	 */
+	public void setPriorityDeadline(int loadPriority, long millis) {
+		if(loadPriority >= FAST_QUEUE && loadPriority <= FASTEST_QUEUE) {
+			priorityDeadlines[loadPriority] = millis;
+		}
+	}
+
+	/**
+	 * @return snapshot of the deadline scheduling statistics.
+	 */
+	public DeadlineStats getDeadlineStats() {
+		synchronized (mDeadlineLock) {
+			return deadlineStats.copy();
+		}
+	}
+
+	/**
+	 * This API resets the deadline scheduling statistics.
+	 */
+	public void resetDeadlineStats() {
+		synchronized (mDeadlineLock) {
+			deadlineStats = new DeadlineStats();
+		}
+	}
+
+	/**
+	 * This API lets user hedge downloads of the fastest priority. A download which got no response within the 
+	 * given percentile of the recently observed times to first byte gets a second attempt, the attempt answering
+	 * first is used and the other one is disconnected. Hedges are capped at a fraction of the downloads, so they
+	 * add little traffic while cutting the tail latency caused by a slow connection or server.
+	 *
+	 * @param percentile percentile of the times to first byte after which downloads are hedged, like 95, 0 to disable.
+	 * @param budgetPercent most hedges in percent of the downloads, like 5.
+	 */
+	public void setHedging(int percentile, int budgetPercent) {
+		synchronized (mHedgeLock) {
+			hedgePercentile = Math.max(0, Math.min(99, percentile));
+			hedgeBudgetPercent = Math.max(0, Math.min(100, budgetPercent));
+			if(hedgePercentile > 0 && hedgeTimer == null) {
+				hedgeTimer = Executors.newSingleThreadScheduledExecutor();
+			}
+		}
+	}
+
+	/**
+	 * @return snapshot of the hedging statistics.
+	 */
+	public HedgeStats getHedgeStats() {
+		synchronized (mHedgeLock) {
+			return hedgeStats.copy();
+		}
+	}
+
+	/**
+	 * This API is internally used to queue a request for download, either in the deadline queue or in the 
+	 * queue of its priority.
+	 *
+	 * @param iO imageObject of the request
+	 */
+	void enqueueDownload(imageObject iO) {
+		if(deadlineScheduling) {
+			if(iO.deadline == 0) {
+				iO.deadline = System.currentTimeMillis() + priorityDeadlines[Math.max(FAST_QUEUE, Math.min(FASTEST_QUEUE, iO.loadPriority))];
+				iO.queueDeadline = iO.deadline;
+			}
+			deadlineQueue.add(iO);
+			return;
+		}
+		ConcurrentLinkedQueue<Object> queue = queueFor(iO.loadPriority);
+		if(queue != null) {
+			queue.add(iO);
+		}
+	}
+
+	/**
+	 * This API is internally used to bring the deadline of a request forward, and reorder the deadline queue if 
+	 * it is still queued there. Later deadlines are ignored, the request keeps the earliest deadline of its waiters.
+	 *
+	 * @param iO imageObject of the request
+	 * @param deadline new deadline
+	 */
+	void tightenDeadline(imageObject iO, long deadline) {
+		if(iO.deadline != 0 && iO.deadline <= deadline) {
+			return;
+		}
+		boolean queued = deadlineQueue.remove(iO);
+		iO.deadline = deadline;
+		iO.queueDeadline = deadline;
+		if(queued) {
+			deadlineQueue.add(iO);
+		}
+	}
+
+	/**
+	 * This API is internally used to record the outcome of a downloaded request in the deadline statistics.
+	 *
+	 * @param iO imageObject of the request
+	 */
+	void recordDeadline(imageObject iO) {
+		if(iO.deadline == 0) {
+			return;
+		}
+		long lateness = System.currentTimeMillis() - iO.deadline;
+		synchronized (mDeadlineLock) {
+			deadlineStats.completed++;
+			if(lateness > 0) {
+				deadlineStats.missed++;
+				deadlineStats.totalLateness += lateness;
+				deadlineStats.maxLateness = Math.max(deadlineStats.maxLateness, lateness);
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to recompute the priority of a request from its waiters and move it to the 
+	 * matching download queue, if it is still queued. Requests being downloaded or read from file-system just 
+	 * take the new priority.
+	 *
+	 * @param iO imageObject of the request
+	 */
+	void updateLoadPriority(imageObject iO) {
+		int loadPriority = iO.basePriority;
+		for(imageObjectPair iOP : iO.imageObjectPairs) {
+			loadPriority = Math.max(loadPriority, iOP.priority);
+		}
+		if(loadPriority == 0 || loadPriority == iO.loadPriority) {
+			return;
+		}
+		ConcurrentLinkedQueue<Object> from = queueFor(iO.loadPriority);
+		ConcurrentLinkedQueue<Object> to = queueFor(loadPriority);
+		iO.loadPriority = loadPriority;
+		/* Note : requests carry a deadline set through their handle even when dispatched by priority queues */
+		if(deadlineScheduling && iO.deadline != 0) {
+			tightenDeadline(iO, System.currentTimeMillis() + priorityDeadlines[Math.max(FAST_QUEUE, Math.min(FASTEST_QUEUE, loadPriority))]);
+		} else if(from != null && to != null && from.remove(iO)) {
+			to.add(iO);
+		}
+	}
+
+	/**
+	 * This API is internally used to get the priority of a waiter in effect. Waiters whose ImageView is shown
+	 * are boosted to the fastest priority.
+	 *
+	 * @param iOP waiter of a request
+	 * @return priority in effect
+	 */
+	static int boostedPriority(imageObjectPair iOP) {
+		if(iOP.iv != null && iOP.iv.isShown()) {
+			return FASTEST_QUEUE;
+		}
+		return iOP.requestedPriority;
+	}
+
+	/**
+	 * Listener boosting the pending request of an ImageView once it is attached to the window, and 
+	 * dropping the boost once it is detached.
+	 */
+	final View.OnAttachStateChangeListener visibilityListener = new View.OnAttachStateChangeListener() {
+		@Override
+		public void onViewAttachedToWindow(View v) {
+			reprioritizeView((ImageView) v);
+		}
+
+		@Override
+		public void onViewDetachedFromWindow(View v) {
+			reprioritizeView((ImageView) v);
+		}
+	};
+
+	/**
+	 * Set of ImageViews visibilityListener is registered on, held weakly.
+	 */
+	WeakHashMap<ImageView, Boolean> watchedImageViews;
+
+	/**
+	 * This API is internally used to register visibilityListener on an ImageView once.
+	 *
+	 * @param imageView ImageView to be watched, may be null.
+	 */
+	void watchVisibility(ImageView imageView) {
+		if(imageView != null && watchedImageViews.put(imageView, Boolean.TRUE) == null) {
+			imageView.addOnAttachStateChangeListener(visibilityListener);
+		}
+	}
+
+	/**
+	 * This API is internally used to reapply the visibility boost to the pending request of an ImageView.
+	 *
+	 * @param imageView ImageView whose visibility changed
+	 */
+	void reprioritizeView(ImageView imageView) {
+		viewState state = viewStateMap.get(imageView);
+		String cacheKey = state != null ? state.cacheKey : null;
+		if(cacheKey == null) {
+			return;
+		}
+		synchronized (mCacheLock) {
+			imageObject iO = imageCache.get(cacheKey);
+			if(iO == null || iO.imageBitmap != null) {
+				return;
+			}
+			for(imageObjectPair iOP : iO.imageObjectPairs) {
+				if(iOP.iv == imageView) {
+					iOP.priority = boostedPriority(iOP);
+				}
+			}
+			updateLoadPriority(iO);
+		}
+	}
+
+	/**
+	 * decodes an image from its encoded bytes with the scale, target size and config requested by the imageObject,
+	 * into a bitmap of the bitmap pool if one fits.
+	 *
+	 * @param is stream of the encoded image, supporting mark and reset over the whole image
+	 * @param iO imageObject of the request
+	 * @return decoded bitmap, null if the bytes are not a decodable image.
+	 * @throws IOException
+	 */
+	Bitmap decodeEncoded(InputStream is, imageObject iO) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = resolveConfig(iO.config, is);
+		options.inSampleSize = iO.scale;
+		if(iO.targetWidth > 0 || iO.targetHeight > 0 || bitmapPool != null) {
+			is.mark(Integer.MAX_VALUE);
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(is, null, options);
+			is.reset();
+			options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, iO.targetWidth, iO.targetHeight, iO.scale);
+			options.inJustDecodeBounds = false;
+		}
+		if(bitmapPool != null && options.inSampleSize <= 1 && options.outWidth > 0) {
+			/* Note : before KitKat a bitmap is only reused by a decode of its exact size, so unsampled decodes only */
+			options.inBitmap = bitmapPool.get(options.outWidth, options.outHeight, options.inPreferredConfig);
+			if(options.inBitmap != null) {
+				options.inMutable = true;
+				try {
+					return BitmapFactory.decodeStream(is, null, options);
+				} catch (IllegalArgumentException e) {
+					/* Note : decoder refused the pooled bitmap, decode into a new one */
+					bitmapPool.put(options.inBitmap);
+					options.inBitmap = null;
+					is.reset();
+				}
+			}
+		}
+		return BitmapFactory.decodeStream(is, null, options);
+	}
+
+	/**
+	 * decodes an image from the encoded cache. The chunk is pinned while it is decoded so it is not reused 
+	 * underneath the decoder, and the entry is dropped if it does not decode.
+	 *
+	 * @param iO imageObject of the request
+	 * @return decoded bitmap, null if the encoded bytes are no longer cached or not a decodable image.
+	 */
+	Bitmap readEncoded(imageObject iO) {
+		encodedEntry entry;
+		synchronized (encodedCache) {
+			entry = encodedCache.get(iO.imageUrl);
+			if(entry == null) {
+				return null;
+			}
+			entry.pins++;
+		}
+		Bitmap bitmap = null;
+		try {
+			bitmap = decodeEncoded(new SlabInputStream(entry.chunk, entry.length), iO);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			synchronized (encodedCache) {
+				entry.pins--;
+				if(bitmap == null && encodedCache.get(iO.imageUrl) == entry) {
+					removeEncoded(iO.imageUrl);
+				} else if(entry.evicted && entry.pins == 0) {
+					slabAllocator.free(entry);
+				}
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * This API lets user reset priorities of all the older movies, basically very useful in case user switches from 
+	 * a screen to new screen in application. So all the requests from older screen are not immediately required anymore.
+	 * Hence priorities of those can me reduced so new requests for new screen can get the bandwidth.
+	 * It basically moves all of those with fastest priority to faster priority and all those with faster priority to 
+	 * fast priority.
+	 */
+	public void resetPriortiy() {
+		imageObject iO = null;
+		while((iO = (imageObject) fasterQueue.poll()) != null) {
+			iO.loadPriority = FAST_QUEUE;
+			fastQueue.add(iO);
+		}
+		while((iO = (imageObject) fastestQueue.poll()) != null) {
+			iO.loadPriority = FASTER_QUEUE;
+			fasterQueue.add(iO);
+		}
+	}
+
+	/**
+	 * loadImage is an API to load the remote image URL into Android ImageView or
+	 * get notified about the download complete of the image by ImageLoaderCallback.
+	 * It lets you define the load priority of the image url. Images can be loaded with 
+	 * three different priorities namely fastest, faster, fast. User can choose from
+	 * {@link FASTEST_QUEUE, FASTER_QUEUE, FAST_QUEUE}. It allows user to define the 
+	 * expire time with the image. Expire time defines for how long will that image be 
+	 * stored in the file-system. Tag is a string which is associated with the request. 
+	 * It is used for purging. You can assign tag string with every request and do a bulk purging 
+	 * based on the tag string. Scale is scaling factor used to reduce the image quality. 
+	 * It affects the image's sampling while decoding.
+	 * 
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
+	 * image view can be passed. In that case in callback the imageview would be returned back. 
+	 * @param ilcb Image loader callback if user wishes to be notified about the download.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag, int scale) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, scale, 0, 0, null, null);
+		else
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default", scale, 0, 0, null, null);
+	}
+
+	/**
+	 * load Image API which transforms the decoded image with a chain of transformations on the read worker, like
+	 * {@link CenterCrop}, {@link CircleCrop}, {@link RoundedCorners} and {@link Blur}. The transformed image is 
+	 * cached in memory, and in the file-system if enabled by {@link #setTransformDiskCache(boolean)}, under a key 
+	 * including the chain, while the untransformed image is cached as usual. The task is same as the main 
+	 * imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
+	 * image view can be passed. In that case in callback the imageview would be returned back. 
+	 * @param ilcb Image loader callback if user wishes to be notified about the download.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @param targetWidth width the image is decoded for, 0 if none
+	 * @param targetHeight height the image is decoded for, 0 if none
+	 * @param config bitmap config to decode with, null to use the config set for the tag {@link #setTagConfig(String, Bitmap.Config)}
+	 * @param transformations transformations applied in order to the decoded image
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag, int scale, int targetWidth, int targetHeight, Bitmap.Config config, Transformation... transformations) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, scale, targetWidth, targetHeight, config, transformations);
+		else
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default", scale, targetWidth, targetHeight, config, transformations);
+	}
+
+	/**
+	 * This API lets user write transformed images to the file-system cache too, so they are not transformed 
+	 * again after they are purged from memory. Off by default.
+	 *
+	 * @param enabled true to write transformed images to the file-system cache.
+	 */
+	public void setTransformDiskCache(boolean enabled) {
+		transformDiskCache = enabled;
+	}
+
+	/**
+	 * This API lets user write decoded variants derived from another image, such as thumbnails downsampled from a
+	 * larger image in memory, to the file-system cache, as long as they take at most the threshold in memory. 
+	 * Cold loads of these variants then read their small file instead of the larger image being downloaded or 
+	 * decoded again. Variants are entries of their own, purged and expired independently of the image they are 
+	 * derived from. Off by default.
+	 *
+	 * @param bytes largest decoded size of variants written, 0 to keep derived variants in memory only.
+	 */
+	public void setVariantDiskThreshold(long bytes) {
+		variantDiskThreshold = bytes;
+	}
+
+	/**
+	 * load Image API which decodes the image for a target size with a specific bitmap config. Opaque images 
+	 * decoded as RGB_565 take half the memory of ARGB_8888. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
+	 * image view can be passed. In that case in callback the imageview would be returned back. 
+	 * @param ilcb Image loader callback if user wishes to be notified about the download.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @param targetWidth width the image is decoded for, 0 if none
+	 * @param targetHeight height the image is decoded for, 0 if none
+	 * @param config bitmap config to decode with, null to use the config set for the tag {@link #setTagConfig(String, Bitmap.Config)}
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag, int scale, int targetWidth, int targetHeight, Bitmap.Config config) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, scale, targetWidth, targetHeight, config, null);
+		else
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default", scale, targetWidth, targetHeight, config, null);
+	}
+
+	/**
+	 * load Image API which decodes the image for a target size. Image is sampled down while decoding to the 
+	 * smallest power of two scale which still covers targetWidth x targetHeight, and is cached as a separate
+	 * variant of the image url. If a larger variant of the same url is already cached it is downsampled
+	 * rather than loaded again from file-system or network.
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
+	 * image view can be passed. In that case in callback the imageview would be returned back. 
+	 * @param ilcb Image loader callback if user wishes to be notified about the download.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @param targetWidth width the image is decoded for, 0 if none
+	 * @param targetHeight height the image is decoded for, 0 if none
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag, int scale, int targetWidth, int targetHeight) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, scale, targetWidth, targetHeight, null, null);
+		else
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default", scale, targetWidth, targetHeight, null, null);
+	}
+
+	/**
+	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
+	 * image view can be passed. In that case in callback the imageview would be returned back. 
+	 * @param ilcb Image loader callback if user wishes to be notified about the download.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, 1, 0, 0, null, null);
+		else
+			return LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default",1, 0, 0, null, null);
+	}
+
+	/**
+	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, int loadPriority, int expireTime, String tag, int scale) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, null, loadPriority, expireTime, tag, scale, 0, 0, null, null);
+		else
+			return LoadImage(imageUrl, imageView, null, loadPriority, expireTime, "default", scale, 0, 0, null, null);
+	}
+
+	/**
+	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, int loadPriority, int expireTime, String tag) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, imageView, null, loadPriority, expireTime, tag, 1, 0, 0, null, null);
+		else
+			return LoadImage(imageUrl, imageView, null, loadPriority, expireTime, "default",1, 0, 0, null, null);
+	}
+
+	/**
+	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, ImageView imageView, int loadPriority, int expireTime) {
+
+		return LoadImage(imageUrl, imageView, null, loadPriority, expireTime, "default",1, 0, 0, null, null);
+	}
+
+	/**
+	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, int loadPriority, int expireTime, String tag) {
+
+		if(tag != null)
+			return LoadImage(imageUrl, null, null, loadPriority, expireTime, tag, 1, 0, 0, null, null);
+		else
+			return LoadImage(imageUrl, null, null, loadPriority, expireTime, "default", 1, 0, 0, null, null);
+	}
+
+	/**
+	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 *
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @return handle of the request, used to change its priority while it is loading.
+	 */
+	public ImageRequest loadImage(String imageUrl, int loadPriority, int expireTime) {
+
+		return LoadImage(imageUrl, null, null, loadPriority, expireTime, "default", 1, 0, 0, null, null);
+	}
+
+	/**
+	 * This is the main LoadImage API which is made private and other wrappers are provided on top of this.
+	 * 
+	 * @param imageUrl remote URL of the image to be download. 
+	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
+	 * image view can be passed. In that case in callback the imageview would be returned back. 
+	 * @param ilcb Image loader callback if user wishes to be notified about the download.
+	 * @param loadPriority image loading priority
+	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string associated with the image.
+	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @param targetWidth width the image is decoded for, 0 if none
+	 * @param targetHeight height the image is decoded for, 0 if none
+	 * @param requestConfig bitmap config to decode with, null to use the config of the tag
+	 * @param transformations transformations applied in order to the decoded image, null or empty if none
+	 * @return handle of the request
+	 */
+	private ImageRequest LoadImage(String imageUrl, ImageView imageView, ImageLoaderCallback imageCallback, int loadPriority, int expireTime, String tag, int scale, int targetWidth, int targetHeight, Bitmap.Config requestConfig, Transformation[] transformations) {
+//		Log.d(TAG, "Current Cache Size >" + imageCacheSize);
+//		Log.d(TAG, "imageUrl > " + imageUrl + "   imageView > " + imageView);
+		
+		if((imageUrl == null) || (imageUrl.length() == 0)) {
+			Log.e(TAG, "Image URL is null or Empty");
+			return COMPLETED_REQUEST;
+		}
+
+		/** NOTE: New image is being loaded in imageView hence mark its timestamp. So that if same imageView was used to load
+		 * some other image , once that other image is downloaded it should not update this version
+		 */
+		viewState state = viewStateMap.get(imageView);
+		if(state == null) {
+			state = new viewState();
+			viewStateMap.put(imageView, state);
+		}
+		state.time = System.currentTimeMillis();
+
+		Bitmap.Config config = requestConfig;
+		if(config == null) {
+			config = tagConfigMap.containsKey(tag) ? tagConfigMap.get(tag) : defaultConfig;
+		}
+		if(transformations != null && transformations.length == 0) {
+			transformations = null;
+		}
+		String cacheKey;
+		if(imageView != null && state.matches(imageUrl, scale, targetWidth, targetHeight, config, transformations)) {
+			/* Note : same request as last time for this ImageView, as on every rebind of a recycled view */
+			cacheKey = state.cacheKey;
+		} else {
+			cacheKey = transformations == null ? buildCacheKey(imageUrl, scale, targetWidth, targetHeight, config) 
+					: buildTransformedKey(imageUrl, scale, targetWidth, targetHeight, config, transformations);
+			if(imageView != null) {
+				state.imageUrl = imageUrl;
+				state.scale = scale;
+				state.targetWidth = targetWidth;
+				state.targetHeight = targetHeight;
+				state.config = config;
+				state.transformations = transformations;
+				state.cacheKey = cacheKey;
+			}
+		}
+		
+		/* Note : memory hit is served from a single probe without allocating, pairs waiting on an image are always 
+		 * delivered once its bitmap arrives so there are none left to drain here. Tagging a key already tagged
+		 * allocates nothing either */
+		imageObject iO;
+		synchronized (mCacheLock) {
+			iO = imageCache.get(cacheKey);
+			if(iO != null) {
+				tagImageUrl(tag, cacheKey);
+			}
+		}
+		if (iO != null) {
+			iO.hitCount++;
+			if(iO.imageBitmap != null) {
+
+				leaseToView(imageView, iO);
+				if(imageCallback != null) {
+					imageCallback.OnDownload(imageUrl, imageView, iO.imageBitmap);
+				} else if(imageView != null) {
+					imageView.setImageBitmap(iO.imageBitmap);
+				}
+				return COMPLETED_REQUEST;
+			} else {
+				imageObjectPair joined = null;
+				for (Iterator<imageObjectPair> it = iO.imageObjectPairs.iterator(); it.hasNext();) {
+					imageObjectPair iOP = (imageObjectPair)it.next();
+					if(iOP.ilcb != null && iOP.ilcb == imageCallback && iOP.iv == imageView) {
+						joined = iOP;
+						iOP.time = System.currentTimeMillis();
+						break;
+					} else if(iOP.ilcb == null && iOP.iv == imageView) {
+						joined = iOP;
+						iOP.time = System.currentTimeMillis();
+						break;
+					}
+				}
+				if(joined == null && imageCallback != null) {
+					joined = new imageObjectPair(imageView, imageCallback);
+					iO.imageObjectPairs.add(joined);
+				} else if(joined == null && imageView != null) {
+					joined = new imageObjectPair(imageView, null);
+					iO.imageObjectPairs.add(joined);
+				}
+				/* Note : waiter joining a pending request raises it to the highest priority among its waiters */
+				if(joined != null) {
+					joined.requestedPriority = loadPriority;
+					joined.priority = boostedPriority(joined);
+				} else {
+					iO.basePriority = Math.max(iO.basePriority, loadPriority);
+				}
+				updateLoadPriority(iO);
+				watchVisibility(imageView);
+				/* Note : requested image waiting in the preload queue is read right away. The flag is cleared under
+				 * the lock the read worker checks it with, so a preload already polled is not skipped anymore */
+				synchronized (mCacheLock) {
+					if(iO.preload) {
+						iO.preload = false;
+						iO.preloadJoined = true;
+						if(preloadQueue.remove(iO)) {
+							readQueue.add(iO);
+						}
+					}
+				}
+				//imageCache.remove(cacheKey);
+				return new ImageRequest(this, iO, joined);
+			}
+		}
+
+		/* Note : file-system cache is looked up in its in-memory index, the UI thread never touches storage */
+		String name = convertImageUrl(cacheKey);
+		File f = new File(fileDir, name);
+		if(transformations != null) {
+			return loadTransformed(imageView, imageCallback, loadPriority, expireTime, tag, imageUrl, cacheKey, scale, targetWidth, targetHeight, config, transformations, f);
+		}
+		imageObject source = findLargerVariant(imageUrl, scale, targetWidth, targetHeight, config);
+		boolean encoded = source == null && hasEncoded(imageUrl);
+		/* Note : fetcher is resolved for variants too, local sources never go into the file-system cache */
+		Fetcher fetcher = fetcherFor(imageUrl);
+		boolean onDisk = mayBeOnDisk(name);
+		if (source != null || encoded || fetcher != null || onDisk) {
+			//Log.d(TAG, "Got the data from file :)" + imageUrl);
+
+			imageObject iO1 = new imageObject();
+			iO1 = new imageObject();
+			iO1.imageUrl = imageUrl;
+			iO1.cacheKey = cacheKey;
+			iO1.scale = scale;
+			iO1.targetWidth = targetWidth;
+			iO1.targetHeight = targetHeight;
+			iO1.config = config;
+			iO1.source = source;
+			if(source != null) {
+				acquireLease(source);
+			}
+			iO1.encoded = encoded;
+			iO1.fetcher = fetcher;
+			iO1.persistVariant = variantDiskThreshold > 0 && fetcher == null && (source != null || encoded) && !onDisk;
+			iO1.loadPriority = loadPriority;
+
+			iO1.imageObjectPairs = new ConcurrentLinkedQueue<imageObjectPair>();
+
+			imageObjectPair iOP = null;
+			if(imageCallback != null) {
+				iOP = new imageObjectPair(imageView, imageCallback);
+				iO1.imageObjectPairs.add(iOP);
+			} else if(imageView != null) {
+				iOP = new imageObjectPair(imageView, null);
+				iO1.imageObjectPairs.add(iOP);
+			}
+			if(iOP != null) {
+				iOP.requestedPriority = loadPriority;
+				iOP.priority = boostedPriority(iOP);
+			} else {
+				iO1.basePriority = loadPriority;
+			}
+			iO1.loadPriority = Math.max(iO1.basePriority, iOP != null ? iOP.priority : 0);
+			watchVisibility(imageView);
+
+			/* Note : Images of local sources are kept in memory only, downsampled variants unless they are persisted */
+			iO1.file = fetcher == null && (source == null || iO1.persistVariant) ? f : null;
+			iO1.tag = tag;
+
+			synchronized (mCacheLock) {
+				imageCache.put(cacheKey, iO1);
+				tagImageUrl(tag, cacheKey);
+				registerVariant(imageUrl, cacheKey);
+			}
+
+			readQueue.add(iO1);
+			synchronized (mReadImageLock) {
+				if(mReadImageFlag == false) {
+					mReadImageFlag = true;
+					//Log.d(TAG, "file exists mReadImageFlag true");
+					new ReadImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+				}
+			}
+			return new ImageRequest(this, iO1, iOP);
+		}
+
+		failedUrl failed = negativeCache.get(imageUrl);
+		if(failed != null) {
+			if(failed.until > System.currentTimeMillis()) {
+				if(imageCallback != null) {
+					imageCallback.OnError(imageUrl, imageView, failed.errorCode);
+				} else if(imageView != null) {
+					showError(imageView);
+				}
+				return COMPLETED_REQUEST;
+			}
+			negativeCache.remove(imageUrl);
+		}
+
+		/** Fetch it again*/
+		imageObject iO1 = new imageObject();
+		iO1 = new imageObject();
+		iO1.imageUrl = imageUrl;
+		iO1.cacheKey = cacheKey;
+		iO1.scale = scale;
+		iO1.targetWidth = targetWidth;
+		iO1.targetHeight = targetHeight;
+		iO1.config = config;
+		iO1.expireTime = (int) (System.currentTimeMillis()/1000 + expireTime);
+		iO1.loadPriority = loadPriority;
+		iO1.imageObjectPairs = new ConcurrentLinkedQueue<imageObjectPair>();
+		//iO1.imageViews = new ConcurrentLinkedQueue<ImageView>();
+
+		imageObjectPair iOP = null;
+		if(imageCallback != null) {
+			iOP = new imageObjectPair(imageView, imageCallback);
+			iO1.imageObjectPairs.add(iOP);
+		} else if(imageView != null) {
+			//imageObjectPair iOP = new imageObjectPair(imageView, mILC);
+			iOP = new imageObjectPair(imageView, null);
+			iO1.imageObjectPairs.add(iOP);
+		}
+		if(iOP != null) {
+			iOP.requestedPriority = loadPriority;
+			iOP.priority = boostedPriority(iOP);
+		} else {
+			iO1.basePriority = loadPriority;
+		}
+		iO1.loadPriority = Math.max(iO1.basePriority, iOP != null ? iOP.priority : 0);
+		watchVisibility(imageView);
+
+		iO1.file = f;
+		iO1.tag = tag;
+
+		synchronized (mCacheLock) {
+			imageCache.put(cacheKey, iO1);
+			tagImageUrl(tag, cacheKey);
+			registerVariant(imageUrl, cacheKey);
+		}
+
+		enqueueDownload(iO1);
+
+		synchronized (mSaveImageLock) {
+			mSaveImageCounter++;
+			if(mSaveImageCounter == 1) {
+				new SaveImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+			}
+		}
+
+		startDownloadTask();
+		return new ImageRequest(this, iO1, iOP);
+	}
+
+	/**
+	 * This API is internally used to load a transformed image missing in memory. It is read from the file-system
+	 * cache if transformed images are kept there, otherwise the chain is applied on the read worker to the 
+	 * untransformed image, which is loaded first unless it is in memory.
+	 *
+	 * @return handle of the request
+	 */
+	private ImageRequest loadTransformed(ImageView imageView, ImageLoaderCallback imageCallback, int loadPriority, int expireTime, String tag, String imageUrl, String cacheKey, int scale, int targetWidth, int targetHeight, Bitmap.Config config, Transformation[] transformations, File f) {
+		imageObject iO1 = new imageObject();
+		iO1.imageUrl = imageUrl;
+		iO1.cacheKey = cacheKey;
+		iO1.scale = scale;
+		iO1.targetWidth = targetWidth;
+		iO1.targetHeight = targetHeight;
+		iO1.config = config;
+		iO1.transformations = transformations;
+		iO1.expireTime = (int) (System.currentTimeMillis()/1000 + expireTime);
+		iO1.imageObjectPairs = new ConcurrentLinkedQueue<imageObjectPair>();
+
+		imageObjectPair iOP = null;
+		if(imageCallback != null) {
+			iOP = new imageObjectPair(imageView, imageCallback);
+			iO1.imageObjectPairs.add(iOP);
+		} else if(imageView != null) {
+			iOP = new imageObjectPair(imageView, null);
+			iO1.imageObjectPairs.add(iOP);
+		}
+		if(iOP != null) {
+			iOP.requestedPriority = loadPriority;
+			iOP.priority = boostedPriority(iOP);
+		} else {
+			iO1.basePriority = loadPriority;
+		}
+		iO1.loadPriority = Math.max(iO1.basePriority, iOP != null ? iOP.priority : 0);
+		watchVisibility(imageView);
+
+		/* Note : Transformed variants are not registered as variants, they can not be downsampled from. Images
+		 * of local sources are transformed again rather than written to the file-system cache */
+		boolean diskCached = transformDiskCache && fetcherFor(imageUrl) == null;
+		iO1.file = diskCached ? f : null;
+		iO1.tag = tag;
+
+		synchronized (mCacheLock) {
+			imageCache.put(cacheKey, iO1);
+			tagImageUrl(tag, cacheKey);
+		}
+
+		if(diskCached && mayBeOnDisk(f.getName())) {
+			readQueue.add(iO1);
+			synchronized (mReadImageLock) {
+				if(mReadImageFlag == false) {
+					mReadImageFlag = true;
+					new ReadImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+				}
+			}
+		} else {
+			transformFromSource(iO1);
+		}
+		return new ImageRequest(this, iO1, iOP);
+	}
+
+	/**
+	 * This API is internally used to get the untransformed image of a transformed request and queue the 
+	 * transformation on the read worker, right away if the untransformed image is in memory, once it is loaded
+	 * otherwise.
+	 *
+	 * @param iO imageObject of the transformed request
+	 */
+	private void transformFromSource(imageObject iO) {
+		String sourceKey = buildCacheKey(iO.imageUrl, iO.scale, iO.targetWidth, iO.targetHeight, iO.config);
+		imageObject source = imageCache.get(sourceKey);
+		if(source == null || source.imageBitmap == null) {
+			LoadImage(iO.imageUrl, null, null, iO.loadPriority, Math.max(0, iO.expireTime - (int) (System.currentTimeMillis()/1000)), iO.tag, iO.scale, iO.targetWidth, iO.targetHeight, iO.config, null);
+			source = imageCache.get(sourceKey);
+		}
+		if(source == null) {
+			/* Note : untransformed image failed recently and is in the negative cache */
+			failedUrl failed = negativeCache.get(iO.imageUrl);
+			failRequest(iO, failed != null ? failed.errorCode : ERROR_NETWORK);
+		} else if(source.imageBitmap == null) {
+			if(source.dependents == null) {
+				source.dependents = new ConcurrentLinkedQueue<imageObject>();
+			}
+			source.dependents.add(iO);
+		} else {
+			acquireLease(source);
+			iO.transformSource = source;
+			readQueue.add(iO);
+			synchronized (mReadImageLock) {
+				if(mReadImageFlag == false) {
+					mReadImageFlag = true;
+					new ReadImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+				}
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used once an untransformed image is loaded, or failed, to pass it on to the 
+	 * transformed requests waiting for it. Runs on the main thread.
+	 *
+	 * @param iO imageObject of the untransformed image
+	 */
+	private void releaseDependents(imageObject iO) {
+		if(iO.dependents == null) {
+			return;
+		}
+		imageObject dependent;
+		while((dependent = iO.dependents.poll()) != null) {
+			if(iO.imageBitmap != null) {
+				acquireLease(iO);
+				dependent.transformSource = iO;
+				readQueue.add(dependent);
+				synchronized (mReadImageLock) {
+					if(mReadImageFlag == false) {
+						mReadImageFlag = true;
+						new ReadImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+					}
+				}
+			} else {
+				failRequest(dependent, iO.errorCode != 0 ? iO.errorCode : ERROR_NETWORK);
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to fail a request which was not downloaded. It is removed from the cache and
+	 * its callbacks are notified. Runs on the main thread.
+	 *
+	 * @param iO imageObject of the request
+	 * @param errorCode error code passed to the callbacks
+	 */
+	private void failRequest(imageObject iO, int errorCode) {
+		synchronized (mCacheLock) {
+			if(imageCache.get(iO.cacheKey) == iO) {
+				imageCache.remove(iO.cacheKey);
+				untagImageUrl(iO.cacheKey);
+			}
+		}
+		imageObjectPair iOP;
+		while((iOP = (imageObjectPair) iO.imageObjectPairs.poll()) != null) {
+			if(isCurrent(iOP)) {
+				if(iOP.ilcb != null) {
+					iOP.ilcb.OnError(iO.imageUrl, iOP.iv, errorCode);
+				} else if(iOP.iv != null) {
+					showError(iOP.iv);
+				}
+			}
+		}
+		releaseDependents(iO);
+	}
+
+	/**
+	 * applies a transformation chain to a bitmap. Intermediate bitmaps are recycled or put into the bitmap pool,
+	 * the source is left alone.
+	 *
+	 * @param source untransformed bitmap
+	 * @param transformations transformations applied in order
+	 * @return transformed bitmap, null if a transformation failed.
+	 */
+	Bitmap applyTransformations(Bitmap source, Transformation[] transformations) {
+		Bitmap bitmap = source;
+		for(Transformation transformation : transformations) {
+			Bitmap result = transformation.transform(bitmap);
+			if(bitmap != source && result != bitmap) {
+				recycleBitmap(bitmap);
+			}
+			bitmap = result;
+			if(bitmap == null) {
+				break;
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * This API is internally used to give up a bitmap which is not shown anywhere, into the bitmap pool if there is one.
+	 *
+	 * @param bitmap bitmap no longer used
+	 */
+	void recycleBitmap(Bitmap bitmap) {
+		if(bitmapPool != null) {
+			bitmapPool.put(bitmap);
+		} else {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * This API is internally used to take a lease on the bitmap of an imageObject, so it is not purged nor reused.
+	 *
+	 * @param iO imageObject holding the bitmap
+	 */
+	void acquireLease(imageObject iO) {
+		synchronized (mCacheLock) {
+			iO.leases++;
+		}
+	}
+
+	/**
+	 * This API is internally used to give back a lease, freeing the bitmap if it was the last lease on an 
+	 * image already removed from the memory cache.
+	 *
+	 * @param iO imageObject holding the bitmap
+	 */
+	void releaseLease(imageObject iO) {
+		synchronized (mCacheLock) {
+			if(iO.leases > 0 && --iO.leases == 0 && iO.evicted) {
+				freeBitmap(iO);
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to move the lease of an ImageView to the imageObject it is about to show.
+	 *
+	 * @param iv ImageView, null for callbacks without ImageView.
+	 * @param iO imageObject shown in it
+	 */
+	private void leaseToView(ImageView iv, imageObject iO) {
+		if(iv == null) {
+			return;
+		}
+		viewState state = viewStateMap.get(iv);
+		if(state == null || state.lease == iO) {
+			return;
+		}
+		synchronized (mCacheLock) {
+			acquireLease(iO);
+			if(state.lease != null) {
+				releaseLease(state.lease);
+			}
+			state.lease = iO;
+			if(state.ref == null) {
+				state.ref = new viewLeaseRef(iv, state, collectedViews);
+				viewLeaseRefs.add(state.ref);
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to show the error image in the ImageView of a failed request without callback.
+	 * The lease of the ImageView on the bitmap it showed before is released.
+	 *
+	 * @param iv ImageView of the failed request
+	 */
+	private void showError(ImageView iv) {
+		iv.setImageBitmap(errorBitmap);
+		viewState state = viewStateMap.get(iv);
+		if(state != null && state.lease != null) {
+			synchronized (mCacheLock) {
+				releaseLease(state.lease);
+				state.lease = null;
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to check if a waiting pair is still the latest request of its ImageView.
+	 *
+	 * @param iOP waiting pair
+	 * @return true if the pair is to be delivered.
+	 */
+	private boolean isCurrent(imageObjectPair iOP) {
+		viewState state = viewStateMap.get(iOP.iv);
+		return state != null && iOP.time >= state.time;
+	}
+
+	/**
+	 * This API is internally used to remove an accounted imageObject from the memory cache. The bitmap is freed
+	 * right away if nobody holds a lease on it, otherwise its bytes stay accounted till the last lease is released.
+	 * Must be called with the cache lock held.
+	 *
+	 * @param iO imageObject removed from the memory cache.
+	 */
+	private void evictBitmap(imageObject iO) {
+		if(iO.byteCount == 0) {
+			return;
+		}
+		iO.evicted = true;
+		if(iO.leases == 0) {
+			freeBitmap(iO);
+		}
+	}
+
+	/**
+	 * This API is internally used to release the bytes of an evicted bitmap nobody holds a lease on, handing it to 
+	 * the bitmap pool if there is one.
+	 *
+	 * @param iO evicted imageObject
+	 */
+	private void freeBitmap(imageObject iO) {
+		releaseBitmap(iO);
+		if(iO.imageBitmap != null) {
+			bitmapOwnerMap.remove(iO.imageBitmap);
+			if(bitmapPool != null) {
+				bitmapPool.put(iO.imageBitmap);
+				iO.imageBitmap = null;
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to get the fetcher of the local source of an image url.
+	 *
+	 * @param imageUrl image url
+	 * @return fetcher of the scheme of the url, null for remote images.
+	 */
+	Fetcher fetcherFor(String imageUrl) {
+		int colon = imageUrl.indexOf(':');
+		if(colon <= 0) {
+			return null;
+		}
+		return fetcherMap.get(imageUrl.substring(0, colon).toLowerCase(Locale.US));
+	}
+
+	/**
+	 * This API is internally used to decode the image of a local source on the read worker.
+	 *
+	 * @param iO imageObject of the request
+	 * @return decoded bitmap, null with the error code set if the source can not be read or decoded.
+	 */
+	Bitmap fetchLocal(imageObject iO) {
+		InputStream is = null;
+		try {
+			is = iO.fetcher.open(iO.imageUrl);
+			Bitmap bitmap = decodeEncoded(new ByteArrayInputStream(readFully(is)), iO);
+			if(bitmap == null) {
+				iO.errorCode = ERROR_DECODE;
+			}
+			return bitmap;
+		} catch (IOException e) {
+			e.printStackTrace();
+			iO.errorCode = ERROR_SOURCE;
+		} finally {
+			if(is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = is.read(buffer)) != -1) {
+			bos.write(buffer, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * This API is internally used to start another download task, unless the pool is already full.
+	 */
+	private void startDownloadTask() {
+		synchronized (mTaskLock) {
+			if(mTaskCounter < mTaskLimit) {
+				mTaskCounter++;
+				new DownloadImageTask().executeOnExecutor(downloadExecutor, (Void[])(null));
+			}
+		}
+	}
+
+	/**
+	 * This API lets user bound the number of downloads running in parallel. Within the bounds the number is
+	 * adjusted by additive increase while the throughput keeps growing, and multiplicative decrease when the
+	 * time to first byte inflates or downloads fail, so it settles at what the network can take.
+	 *
+	 * @param min minimum number of parallel downloads, at least 1.
+	 * @param max maximum number of parallel downloads.
+	 */
+	public void setConcurrencyBounds(int min, int max) {
+		synchronized (mConcurrencyLock) {
+			minTaskLimit = Math.max(1, min);
+			maxTaskLimit = Math.max(minTaskLimit, max);
+			setTaskLimit(mTaskLimit);
+		}
+	}
+
+	/**
+	 * @return number of downloads currently allowed to run in parallel.
+	 */
+	public int getConcurrency() {
+		return mTaskLimit;
+	}
+
+	/**
+	 * This API is internally used to set the number of parallel downloads within the bounds. If it is raised 
+	 * while downloads are queued, the additional download threads are started from the main thread.
+	 *
+	 * @param limit new number of parallel downloads
+	 */
+	private void setTaskLimit(int limit) {
+		int old = mTaskLimit;
+		mTaskLimit = Math.max(minTaskLimit, Math.min(maxTaskLimit, limit));
+		for(int i = old; i < mTaskLimit; i++) {
+			retryHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(!fastestQueue.isEmpty() || !fasterQueue.isEmpty() || !fastQueue.isEmpty() || !deadlineQueue.isEmpty()) {
+						startDownloadTask();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * This API is internally used to get the time after which a download is hedged. Only downloads of the fastest
+	 * priority are hedged, once enough times to first byte are observed to take the percentile from. Every 
+	 * download is counted towards the hedge budget.
+	 *
+	 * @param iO imageObject of the download
+	 * @return delay in milliseconds, 0 if the download is not hedged.
+	 */
+	long hedgeDelay(imageObject iO) {
+		synchronized (mHedgeLock) {
+			hedgeStats.downloads++;
+			if(hedgePercentile <= 0 || iO.loadPriority < FASTEST_QUEUE || firstByteSampleCount < HEDGE_MIN_SAMPLES) {
+				return 0;
+			}
+			int count = Math.min(firstByteSampleCount, HEDGE_SAMPLES);
+			long[] sorted = new long[count];
+			System.arraycopy(firstByteSamples, 0, sorted, 0, count);
+			Arrays.sort(sorted);
+			return Math.max(1, sorted[Math.min(count - 1, count * hedgePercentile / 100)]);
+		}
+	}
+
+	/**
+	 * This API is internally used to take a hedge from the budget.
+	 *
+	 * @return true if the budget allows another hedge.
+	 */
+	boolean takeHedge() {
+		synchronized (mHedgeLock) {
+			if((hedgeStats.hedges + 1) * 100 > hedgeStats.downloads * hedgeBudgetPercent) {
+				return false;
+			}
+			hedgeStats.hedges++;
+			return true;
+		}
+	}
+
+	/**
+	 * This API is internally used to feed a finished download into the concurrency controller. Downloads are 
+	 * measured in windows of as many downloads as are allowed in parallel. At the end of a window the limit is
+	 * halved if the mean time to first byte is beyond the tolerance of the baseline, the lowest mean of the last
+	 * {@link #BASELINE_WINDOWS} windows, raised by one if the throughput grew, and kept otherwise. A transient failure halves the limit right away. Times to first byte
+	 * are also sampled for hedging.
+	 *
+	 * @param iO imageObject of the finished download
+	 */
+	private void recordDownload(imageObject iO) {
+		if(!iO.transientError) {
+			synchronized (mHedgeLock) {
+				firstByteSamples[firstByteSampleCount % HEDGE_SAMPLES] = iO.firstByteTime;
+				firstByteSampleCount++;
+			}
+		}
+		synchronized (mConcurrencyLock) {
+			long now = System.currentTimeMillis();
+			if(iO.transientError) {
+				setTaskLimit(mTaskLimit / 2);
+				windowCount = 0;
+				return;
+			}
+			if(windowCount == 0) {
+				windowStartTime = now - iO.firstByteTime;
+				windowBytes = 0;
+				windowFirstByteTime = 0;
+			}
+			windowCount++;
+			windowBytes += iO.bytesDownloaded;
+			windowFirstByteTime += iO.firstByteTime;
+			if(windowCount < mTaskLimit) {
+				return;
+			}
+
+			long throughput = windowBytes * 1000 / Math.max(1, now - windowStartTime);
+			long firstByteTime = windowFirstByteTime / windowCount;
+			/* Note : baseline is the lowest latency of the last windows, a changed network is picked up once the 
+			 * windows of the old one aged out */
+			windowFirstByteTimes[baselineWindowCount % BASELINE_WINDOWS] = Math.max(1, firstByteTime);
+			baselineWindowCount++;
+			baseFirstByteTime = Long.MAX_VALUE;
+			for(int i = 0; i < Math.min(baselineWindowCount, BASELINE_WINDOWS); i++) {
+				baseFirstByteTime = Math.min(baseFirstByteTime, windowFirstByteTimes[i]);
+			}
+			if(firstByteTime > baseFirstByteTime * LATENCY_TOLERANCE) {
+				setTaskLimit(mTaskLimit / 2);
+			} else if(throughput > lastThroughput + lastThroughput / 20) {
+				setTaskLimit(mTaskLimit + 1);
+			}
+			lastThroughput = throughput;
+			windowCount = 0;
+		}
+	}
+
+	/**
+	 * This is an internal class which reads at most a given number of bytes of the stream below.
+	 */
+	static class BoundedInputStream extends FilterInputStream {
+		long remaining;
+		BoundedInputStream(InputStream in, long limit) {
+			super(in);
+			remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if(b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if(remaining <= 0) {
+				return -1;
+			}
+			int n = super.read(buffer, offset, (int) Math.min(length, remaining));
+			if(n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+	}
+
+	/**
+	 * This API is internally used to write an image to the file-system cache crash-safe. The image is written
+	 * to a temporary file with a footer of its length and checksum, synced, and then renamed into place and 
+	 * journaled. A crash at any point leaves either the previous state or the complete entry.
+	 *
+	 * @param bitmap image to be written.
+	 * @param file file of the cache entry.
+	 * @param format format the image is compressed with.
+	 * @param quality compression quality, ignored for PNG.
+	 * @return true if the entry is committed.
+	 */
+	boolean commitImage(Bitmap bitmap, File file, Bitmap.CompressFormat format, int quality) throws IOException {
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream fileOS = new FileOutputStream(temp);
+		boolean compressed;
+		long length;
+		try {
+			BufferedOutputStream bos = new BufferedOutputStream(fileOS, BUFFER_SIZE);
+			CheckedOutputStream checked = new CheckedOutputStream(bos, new CRC32());
+			DataOutputStream data = new DataOutputStream(checked);
+			compressed = bitmap.compress(format, quality, data);
+			data.flush();
+			length = data.size();
+			DataOutputStream footer = new DataOutputStream(bos);
+			footer.writeLong(length);
+			footer.writeLong(checked.getChecksum().getValue());
+			footer.writeInt(FOOTER_MAGIC);
+			footer.flush();
+			fileOS.getFD().sync();
+		} finally {
+			fileOS.close();
+		}
+		if(!compressed) {
+			temp.delete();
+			return false;
+		}
+		synchronized (mJournalLock) {
+			if(!temp.renameTo(file)) {
+				temp.delete();
+				return false;
+			}
+			appendJournal("C " + file.getName() + " " + length);
+			indexDiskEntry(file.getName());
+		}
+		return true;
+	}
+
+	/**
+	 * This API is internally used to delete an entry of the file-system cache and journal it.
+	 *
+	 * @param file file of the cache entry.
+	 */
+	void deleteCacheFile(File file) {
+		synchronized (mJournalLock) {
+			if(file.delete()) {
+				appendJournal("D " + file.getName());
+			}
+			synchronized (mDiskIndexLock) {
+				if(diskIndex != null) {
+					diskIndex.remove(file.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to add a committed entry to the index of the file-system cache.
+	 *
+	 * @param name file name of the entry
+	 */
+	void indexDiskEntry(String name) {
+		synchronized (mDiskIndexLock) {
+			if(diskIndex != null) {
+				diskIndex.add(name);
+			} else {
+				diskBloomFilter.add(name);
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used to check if the file-system cache may hold an entry, from memory only. 
+	 * Until the index is loaded at startup, and for false positives of the Bloom filter, the entry is only 
+	 * possibly there and the read worker falls back to downloading if it is not.
+	 *
+	 * @param name file name of the entry
+	 * @return false if the file-system cache certainly does not hold the entry.
+	 */
+	boolean mayBeOnDisk(String name) {
+		synchronized (mDiskIndexLock) {
+			if(!diskState.loaded) {
+				return true;
+			}
+			return diskIndex != null ? diskIndex.contains(name) : diskBloomFilter.mightContain(name);
+		}
+	}
+
+	/**
+	 * This API is internally used to append a line to the journal. Callers hold mJournalLock.
+	 *
+	 * @param line journal line
+	 */
+	void appendJournal(String line) {
+		try {
+			FileWriter writer = new FileWriter(new File(fileDir, JOURNAL_FILE), true);
+			try {
+				writer.write(line);
+				writer.write('\n');
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * This is AsyncTask which recovers the file-system cache at startup. It replays the journal and discards 
+	 * temporary files, entries never committed and entries whose size does not match their journaled length,
+	 * without decoding any of them, then compacts the journal to the surviving entries. Entries which are 
+	 * corrupt despite the right size are caught by the checksum when read. The surviving entries make up the
+	 * in-memory index of the file-system cache. Partial bodies of interrupted downloads are not entries, they
+	 * are only discarded once too old to be resumed. The first start in the default directory also deletes the 
+	 * entries earlier versions left in the application's cache directory.
+	 */
+	private class RecoverDiskCacheTask extends AsyncTask<Void, Void, Void> {
+
+		/**
+		 * Name earlier versions gave an entry, the url without scheme and with slashes replaced by dots : a host 
+		 * name with a top-level domain, an IPv4 address or localhost, an optional port, then the dotted path.
+		 */
+		final Pattern LEGACY_ENTRY_NAME = Pattern.compile(
+				"(localhost|\\d{1,3}(\\.\\d{1,3}){3}|([a-z0-9-]+\\.)+[a-z]{2,})(:\\d+)?\\..+", Pattern.CASE_INSENSITIVE);
+
+		/**
+		 * deletes the entries earlier versions wrote straight into the application's cache directory, before the 
+		 * cache moved into its own directory. They are told from the other files of the application by a name
+		 * converted from an image url, host first with the path dotted {@link #LEGACY_ENTRY_NAME}, and by their 
+		 * image signature. The snapshot is told by its name.
+		 *
+		 * @param cacheRoot application's cache directory
+		 */
+		void deleteLegacyEntries(File cacheRoot) {
+			File[] files = cacheRoot.listFiles();
+			if(files == null) {
+				return;
+			}
+			byte[] header = new byte[12];
+			for(File f : files) {
+				if(f.isDirectory()) {
+					continue;
+				}
+				if(f.getName().equals(SNAPSHOT_FILE)) {
+					f.delete();
+					continue;
+				}
+				if(!LEGACY_ENTRY_NAME.matcher(f.getName()).matches()) {
+					continue;
+				}
+				try {
+					FileInputStream in = new FileInputStream(f);
+					int n;
+					try {
+						n = in.read(header);
+					} finally {
+						in.close();
+					}
+					if(n == header.length && isImageSignature(header)) {
+						f.delete();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * @param header first 12 bytes of a file
+		 * @return true if they start a PNG, JPEG, GIF or WebP image.
+		 */
+		boolean isImageSignature(byte[] header) {
+			return (header[0] == (byte) 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G')
+					|| (header[0] == (byte) 0xFF && header[1] == (byte) 0xD8 && header[2] == (byte) 0xFF)
+					|| (header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8')
+					|| (header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F' 
+						&& header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P');
+		}
+
+		@Override
+		protected Void doInBackground(Void... params) {
+			synchronized (mJournalLock) {
+				HashMap<String, Long> committed = new HashMap<String, Long>();
+				File journal = new File(fileDir, JOURNAL_FILE);
+				File cacheRoot = appContext.getCacheDir();
+				if(!journal.exists() && fileDir.getName().equals(DISK_CACHE_DIR) && cacheRoot != null && cacheRoot.equals(fileDir.getParentFile())) {
+					/* Note : first start in the default directory, entries of earlier versions are deleted once */
+					deleteLegacyEntries(cacheRoot);
+				}
+				if(journal.exists()) {
+					try {
+						BufferedReader reader = new BufferedReader(new FileReader(journal));
+						try {
+							String line;
+							while((line = reader.readLine()) != null) {
+								String[] fields = line.split(" ");
+								if(fields.length == 3 && fields[0].equals("C")) {
+									committed.put(fields[1], Long.valueOf(fields[2]));
+								} else if(fields.length == 2 && fields[0].equals("D")) {
+									committed.remove(fields[1]);
+								}
+							}
+						} finally {
+							reader.close();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					} catch (NumberFormatException e) {
+						/* Note : torn last line of a crash, the entries read so far are valid */
+						e.printStackTrace();
+					}
+				}
+
+				File[] files = fileDir.listFiles();
+				ArrayList<String> lines = new ArrayList<String>();
+				if(files != null) {
+					for(File f : files) {
+						String name = f.getName();
+						if(f.isDirectory() || name.equals(JOURNAL_FILE) || name.equals(SNAPSHOT_FILE)) {
+							continue;
+						}
+						if(name.endsWith(PARTIAL_SUFFIX) || name.endsWith(VALIDATOR_SUFFIX)) {
+							/* Note : interrupted downloads are kept for a while to be resumed */
+							if(System.currentTimeMillis() - f.lastModified() > PARTIAL_TTL) {
+								f.delete();
+							}
+							continue;
+						}
+						Long length = committed.get(name);
+						if(length == null || name.endsWith(TEMP_SUFFIX) || f.length() != length.longValue() + FOOTER_SIZE) {
+							f.delete();
+						} else {
+							lines.add("C " + name + " " + length);
+							indexDiskEntry(name);
+						}
+					}
+				}
+
+				File temp = new File(fileDir, JOURNAL_FILE + TEMP_SUFFIX);
+				try {
+					BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+					try {
+						for(String line : lines) {
+							writer.write(line);
+							writer.newLine();
+						}
+					} finally {
+						writer.close();
+					}
+					temp.renameTo(journal);
+				} catch (IOException e) {
+					e.printStackTrace();
+					temp.delete();
+				}
+				synchronized (mDiskIndexLock) {
+					diskState.loaded = true;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * This is an internal class which counts the bytes read through it.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		long count;
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if(n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * This API is internally used to queue a download failed with a transient error again after a jittered 
+	 * exponential backoff. The request keeps its place in the save chain meanwhile, the save task waits for it
+	 * without spinning.
+	 *
+	 * @param iO imageObject of the failed request
+	 * @return true if a retry is scheduled, false if the error is permanent or retries are used up.
+	 */
+	private boolean scheduleRetry(final imageObject iO) {
+		if(!iO.transientError || iO.attempts >= maxDownloadRetries) {
+			return false;
+		}
+		long backoff = retryBaseDelay << iO.attempts;
+		long delay = backoff / 2 + (long) (retryJitter.nextDouble() * backoff);
+		iO.attempts++;
+		retryHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mCacheLock) {
+					enqueueDownload(iO);
+				}
+				startDownloadTask();
+			}
+		}, delay);
+		return true;
+	}
+
+	/**
+	 * This API lets user configure retries of downloads failing with transient errors like timeouts and 5xx
+	 * responses, and the negative cache of urls which failed for good. Such urls are not downloaded again till
+	 * their time in the negative cache is over, their requests are answered with an error right away.
+	 *
+	 * @param maxRetries maximum number of retries of a download, 0 to not retry.
+	 * @param baseDelay delay in milliseconds before the first retry, doubled on every further retry and jittered.
+	 * @param negativeTtl time in milliseconds a failed url stays in the negative cache, 0 to not cache failures.
+	 */
+	public void setRetryPolicy(int maxRetries, long baseDelay, long negativeTtl) {
+		maxDownloadRetries = maxRetries;
+		retryBaseDelay = baseDelay;
+		negativeCacheTtl = negativeTtl;
+	}
+
+	/**
+	 * This API lets user configure what the ImageView of a request without callback shows when the image could
+	 * not be loaded, either right away from the negative cache or after all retries. By default the ImageView is
+	 * cleared, so a recycled ImageView does not keep showing the image of its previous url.
+	 *
+	 * @param bitmap image shown in the ImageView, owned by the user and never pooled, null to clear the ImageView.
+	 */
+	public void setErrorImage(Bitmap bitmap) {
+		errorBitmap = bitmap;
+	}
+
+	/**
+	 * This API is private and used internally to store imageUrl and the cache key of
+	 * one of its variants in the hashmap.
+	 * 
+	 * @param url imageUrl the variant belongs to.
+	 * @param cacheKey cache key of the variant.
+	 */
+	private void registerVariant(String url, String cacheKey) {
+		ArrayList<String> list = variantMap.get(url);
+		if(list == null) {
+			list = new ArrayList<String>();
+			variantMap.put(url, list);
+		}
+		if(!list.contains(cacheKey)) {
+			list.add(cacheKey);
+		}
+	}
+
+	/**
+	 * This API is private and used internally to find a decoded variant of imageUrl in the memory cache which 
+	 * is large enough to be downsampled to the requested variant. Variants which are no longer in the memory 
+	 * cache are dropped from the variant map on the way. Smallest suitable variant is preferred.
+	 *
+	 * @param url imageUrl of the requested variant
+	 * @param scale scaling factor of the requested variant
+	 * @param targetWidth target width of the requested variant, 0 if none
+	 * @param targetHeight target height of the requested variant, 0 if none
+	 * @param config bitmap config of the requested variant
+	 * @return imageObject of the variant to downsample from, null if there is none.
+	 */
+	private imageObject findLargerVariant(String url, int scale, int targetWidth, int targetHeight, Bitmap.Config config) {
+		imageObject best = null;
+		synchronized (mCacheLock) {
+			ArrayList<String> list = variantMap.get(url);
+			if(list == null) {
+				return null;
+			}
+			for (Iterator<String> it = list.iterator(); it.hasNext();) {
+				imageObject iO = imageCache.get(it.next());
+				if(iO == null) {
+					it.remove();
+					continue;
+				}
+				if(iO.imageBitmap == null || iO.config != config || downsampleFactor(iO, scale, targetWidth, targetHeight) < 2) {
+					continue;
+				}
+				if(best == null || iO.imageBitmap.getByteCount() < best.imageBitmap.getByteCount()) {
+					best = iO;
+				}
+			}
+			if(list.isEmpty()) {
+				variantMap.remove(url);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * calculates the factor by which a cached variant has to be sampled down to serve the requested variant.
+	 * A variant decoded for a target size can only serve requests which have a target size themselves, as its
+	 * scale relative to the original image is not known.
+	 *
+	 * @param source cached variant
+	 * @param scale scaling factor of the requested variant
+	 * @param targetWidth target width of the requested variant, 0 if none
+	 * @param targetHeight target height of the requested variant, 0 if none
+	 * @return downsample factor, 0 if the cached variant cannot serve the request
+	 */
+	private static int downsampleFactor(imageObject source, int scale, int targetWidth, int targetHeight) {
+		int sourceScale = Math.max(source.scale, 1);
+		if(sourceScale > scale) {
+			return 0;
+		}
+		if(targetWidth <= 0 && targetHeight <= 0) {
+			if(source.targetWidth > 0 || source.targetHeight > 0) {
+				return 0;
+			}
+			return scale / sourceScale;
+		}
+		int width = source.imageBitmap.getWidth();
+		int height = source.imageBitmap.getHeight();
+		if(width < targetWidth || height < targetHeight) {
+			return 0;
+		}
+		return calculateSampleSize(width, height, targetWidth, targetHeight, scale / sourceScale);
+	}
+
+	/**
+	 * This API is private and used internally to store cache key and corresponding 
+	 * tag value in the hashmaps. Tagging the same key again with the same tag is a no-op.
+	 * 
+	 * @param tag tag string to be associated.
+	 * @param cacheKey cache key to be associated to.
+	 */
+	private void tagImageUrl(String tag, String cacheKey) {
+		if(tag == null) {
+			tag = "default";
+		}
+		HashSet<String> keys = tagMap.get(tag);
+		if(keys == null) {
+			keys = new HashSet<String>();
+			tagMap.put(tag, keys);
+		}
+		if(keys.add(cacheKey)) {
+			HashSet<String> tags = keyTagMap.get(cacheKey);
+			if(tags == null) {
+				tags = new HashSet<String>();
+				keyTagMap.put(cacheKey, tags);
+			}
+			tags.add(tag);
+		}
+	}
+
+	/**
+	 * This API is private and used internally to drop a cache key from all tags, once the image is 
+	 * neither in memory nor in file-system anymore.
+	 * 
+	 * @param cacheKey cache key to be dropped.
+	 */
+	private void untagImageUrl(String cacheKey) {
+		HashSet<String> tags = keyTagMap.remove(cacheKey);
+		if(tags != null) {
+			for(String tag : tags) {
+				HashSet<String> keys = tagMap.get(tag);
+				if(keys != null) {
+					keys.remove(cacheKey);
+					if(keys.isEmpty()) {
+						tagMap.remove(tag);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runnable persisting the snapshot periodically, if the memory cache changed meanwhile.
+	 */
+	final Runnable snapshotRunnable = new Runnable() {
+		@Override
+		public void run() {
+			saveSnapshot();
+			retryHandler.postDelayed(this, SNAPSHOT_INTERVAL);
+		}
+	};
+
+	/**
+	 * This API is internally used to persist the keys of the hot set of images in background. The most recently
+	 * used images, twice as many as the snapshot holds, are ranked by their number of requests. Each line of the
+	 * snapshot holds cache key, image url, tag, scale, target width, target height and config of an image.
+	 */
+	void saveSnapshot() {
+		if(snapshotSize <= 0 || !snapshotDirty) {
+			return;
+		}
+		snapshotDirty = false;
+		ArrayList<imageObject> recent = new ArrayList<imageObject>();
+		synchronized (mCacheLock) {
+			for(imageObject iO : imageCache.values()) {
+				if(iO.imageBitmap != null && iO.file != null && iO.transformations == null) {
+					recent.add(iO);
+				}
+			}
+		}
+		if(recent.size() > snapshotSize * 2) {
+			recent = new ArrayList<imageObject>(recent.subList(recent.size() - snapshotSize * 2, recent.size()));
+		}
+		Collections.reverse(recent);
+		Collections.sort(recent, new Comparator<imageObject>() {
+			@Override
+			public int compare(imageObject lhs, imageObject rhs) {
+				return rhs.hitCount - lhs.hitCount;
+			}
+		});
+		ArrayList<String> lines = new ArrayList<String>();
+		for(int i = 0; i < recent.size() && i < snapshotSize; i++) {
+			imageObject iO = recent.get(i);
+			lines.add(iO.cacheKey + "\t" + iO.imageUrl + "\t" + iO.tag + "\t" + iO.scale + "\t" + iO.targetWidth 
+					+ "\t" + iO.targetHeight + "\t" + (iO.config != null ? iO.config.name() : ""));
+		}
+		new SaveSnapshotTask().executeOnExecutor(taskExecutor, lines.toArray(new String[lines.size()]));
+	}
+
+	/**
+	 * This is AsyncTask which writes the snapshot to the file-system. It is written to a temporary file first
+	 * and renamed over the previous snapshot, so a crash never leaves a partial snapshot behind.
+	 */
+	private class SaveSnapshotTask extends AsyncTask<String, Void, Void> {
+
+		@Override
+		protected Void doInBackground(String... lines) {
+			File temp = new File(fileDir, SNAPSHOT_FILE + TEMP_SUFFIX);
+			/* Note : instances on the same directory write the snapshot in turn, the last one wins */
+			synchronized (mJournalLock) {
+				try {
+					BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+					try {
+						for(String line : lines) {
+							writer.write(line);
+							writer.newLine();
+						}
+					} finally {
+						writer.close();
+					}
+					temp.renameTo(new File(fileDir, SNAPSHOT_FILE));
+				} catch (IOException e) {
+					e.printStackTrace();
+					temp.delete();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * This is AsyncTask which reads the snapshot from the file-system and queues the images still in the 
+	 * file-system cache for preloading.
+	 */
+	private class LoadSnapshotTask extends AsyncTask<Void, Void, ArrayList<imageObject>> {
+
+		@Override
+		protected ArrayList<imageObject> doInBackground(Void... params) {
+			ArrayList<imageObject> list = new ArrayList<imageObject>();
+			File snapshot = new File(fileDir, SNAPSHOT_FILE);
+			if(!snapshot.exists()) {
+				return list;
+			}
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader(snapshot));
+				try {
+					String line;
+					while((line = reader.readLine()) != null && list.size() < snapshotSize) {
+						String[] fields = line.split("\t", -1);
+						if(fields.length < 7) {
+							continue;
+						}
+						imageObject iO = new imageObject();
+						iO.cacheKey = fields[0];
+						iO.imageUrl = fields[1];
+						iO.tag = fields[2];
+						iO.scale = Integer.parseInt(fields[3]);
+						iO.targetWidth = Integer.parseInt(fields[4]);
+						iO.targetHeight = Integer.parseInt(fields[5]);
+						iO.config = fields[6].length() > 0 ? Bitmap.Config.valueOf(fields[6]) : null;
+						iO.file = new File(fileDir, convertImageUrl(iO.cacheKey));
+						iO.imageObjectPairs = new ConcurrentLinkedQueue<imageObjectPair>();
+						iO.preload = true;
+						if(iO.file.exists()) {
+							list.add(iO);
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (IllegalArgumentException e) {
+				/* Note : malformed snapshot, preload what was read so far */
+				e.printStackTrace();
+			}
+			return list;
+		}
+
+		@Override
+		protected void onPostExecute(ArrayList<imageObject> list) {
+			synchronized (mCacheLock) {
+				for(imageObject iO : list) {
+					if(imageCache.containsKey(iO.cacheKey)) {
+						continue;
+					}
+					imageCache.put(iO.cacheKey, iO);
+					tagImageUrl(iO.tag, iO.cacheKey);
+					registerVariant(iO.imageUrl, iO.cacheKey);
+					preloadQueue.add(iO);
+				}
+			}
+			synchronized (mReadImageLock) {
+				if(mReadImageFlag == false && !preloadQueue.isEmpty()) {
+					mReadImageFlag = true;
+					new ReadImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+				}
+			}
+		}
+	}
+
+	/**
+	 * This API is internally used on the read worker to decide if a variant just derived from another image is
+	 * written to the file-system cache, which it is if it is within the variant threshold.
+	 *
+	 * @param iO imageObject of the variant
+	 * @return true if the variant is written.
+	 */
+	private boolean persistVariant(imageObject iO) {
+		if(!iO.persistVariant || iO.imageBitmap == null) {
+			iO.persistVariant = false;
+			return false;
+		}
+		iO.persistVariant = (long) iO.imageBitmap.getRowBytes() * iO.imageBitmap.getHeight() <= variantDiskThreshold;
+		iO.derived = iO.persistVariant;
+		return iO.persistVariant;
+	}
+
+	/**
+	 * This is AsyncTask which reads cached images from the file-system.  
+	 */
+	private class ReadImageTask extends AsyncTask<Void, imageObject, Void> {
+
+		@Override 
+		protected Void doInBackground(Void... urls) {
+
+			imageObject iO = null;
+
+			while((iO = (imageObject) readQueue.poll()) != null || (iO = (imageObject) preloadQueue.poll()) != null) {
+
+				boolean skip;
+				synchronized (mCacheLock) {
+					skip = iO.preload && imageCacheSize >= imageCacheLowerLimit;
+				}
+				if(skip) {
+					/* Note : preloading never pushes requested images out of the cache */
+					iO.imageBitmap = null;
+					if(iO.transformSource != null) {
+						releaseLease(iO.transformSource);
+						iO.transformSource = null;
+					}
+					if(iO.source != null) {
+						releaseLease(iO.source);
+						iO.source = null;
+					}
+				} else if(iO.transformSource != null) {
+					Bitmap b = iO.transformSource.imageBitmap;
+					iO.imageBitmap = applyTransformations(b, iO.transformations);
+					if(iO.imageBitmap == b) {
+						/* Note : chain left the image alone, a copy keeps every cached bitmap owned by one entry */
+						iO.imageBitmap = b.copy(b.getConfig(), true);
+					}
+					releaseLease(iO.transformSource);
+					iO.transformSource = null;
+					iO.derived = true;
+					if(iO.imageBitmap == null) {
+						iO.errorCode = ERROR_DECODE;
+					}
+				} else if(iO.source != null) {
+					Bitmap b = iO.source.imageBitmap;
+					int factor = downsampleFactor(iO.source, iO.scale, iO.targetWidth, iO.targetHeight);
+					iO.imageBitmap = Bitmap.createScaledBitmap(b, b.getWidth() / factor, b.getHeight() / factor, true);
+					releaseLease(iO.source);
+					iO.source = null;
+					if(!persistVariant(iO)) {
+						iO.file = null;
+					}
+				} else if(iO.fetcher != null) {
+					iO.imageBitmap = fetchLocal(iO);
+				} else {
+					if(iO.encoded) {
+						/* Note : encoded bytes may have been evicted since, fall back to the file-system cache */
+						iO.imageBitmap = readEncoded(iO);
+						iO.encoded = false;
+						persistVariant(iO);
+					}
+					if(iO.imageBitmap == null) {
+						iO.imageBitmap = decodeFile(iO);
+						if(iO.imageBitmap == null) {
+							deleteCacheFile(iO.file);
+							iO.refetch = true;
+						}
+					}
+				}
+
+				//Log.d(TAG, "publishing progress for" + iO.imageUrl);
+				publishProgress(iO);
+				iO = null;
+			}
+			return null;
+		}
+
+		protected void onProgressUpdate(imageObject... values) {
+			super.onProgressUpdate(values);
+
+			imageObjectPair iOP = null;
+			if(values[0].imageBitmap != null) {
+				synchronized (mCacheLock) {
+					if(imageCacheSize >= imageCacheUpperLimit) {
+						pergeCache();
+					}
+					
+					//Log.d(TAG, values[0].imageBitmap.getByteCount() + "   " + values[0].imageBitmap.getHeight() * values[0].imageBitmap.getWidth());
+					/* Note : leased before it is accounted, so it is not purged while being delivered */
+					acquireLease(values[0]);
+					accountBitmap(values[0]);
+				}
+				while((iOP = (imageObjectPair) values[0].imageObjectPairs.poll()) != null) {
+					if(isCurrent(iOP)) {
+						leaseToView(iOP.iv, values[0]);
+						if(iOP.ilcb != null) {
+							iOP.ilcb.OnDownload(values[0].imageUrl, iOP.iv, values[0].imageBitmap);
+						} else {
+							iOP.iv.setImageBitmap(values[0].imageBitmap);
+						}
+					}
+				}
+				releaseDependents(values[0]);
+				if(values[0].derived && values[0].file != null) {
+					/* Note : freshly transformed or downsampled image is written to the file-system cache */
+					values[0].derived = false;
+					synchronized (mSaveImageLock) {
+						mSaveImageCounter++;
+						if(mSaveImageCounter == 1) {
+							new SaveImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+						}
+					}
+					/* Note : lease is handed to the save task */
+					queueSave(values[0]);
+				} else {
+					releaseLease(values[0]);
+				}
+			} else if(values[0].errorCode == ERROR_DECODE && values[0].transformations != null) {
+				failRequest(values[0], ERROR_DECODE);
+			} else if(values[0].fetcher != null) {
+				/* Note : local source is not downloaded, its failure is final */
+				failRequest(values[0], values[0].errorCode);
+			} else if(values[0].refetch && !values[0].preload && values[0].transformations != null) {
+				/* Note : transformed entry was corrupt, transform the untransformed image again */
+				values[0].refetch = false;
+				transformFromSource(values[0]);
+			} else if(values[0].refetch && !values[0].preload) {
+				/* Note : file-system cache entry was corrupt, download the image again */
+				values[0].refetch = false;
+				synchronized (mSaveImageLock) {
+					mSaveImageCounter++;
+					if(mSaveImageCounter == 1) {
+						new SaveImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+					}
+				}
+				synchronized (mCacheLock) {
+					enqueueDownload(values[0]);
+				}
+				startDownloadTask();
+			} else if(values[0].preload) {
+				synchronized (mCacheLock) {
+					if(imageCache.get(values[0].cacheKey) == values[0]) {
+						imageCache.remove(values[0].cacheKey);
+					}
+				}
+			} else if(values[0].preloadJoined && values[0].imageBitmap == null) {
+				/* Note : preload skipped by the worker was joined by a request meanwhile, with or without waiting 
+				 * pairs, read it again as a request as long as it is still the cached entry */
+				synchronized (mCacheLock) {
+					if(imageCache.get(values[0].cacheKey) == values[0]) {
+						readQueue.add(values[0]);
+					}
+				}
+			}
+			values[0].preload = false;
+			values[0].preloadJoined = false;
+		}
+
+		@Override
+		protected void onPostExecute(Void result) {
+			super.onPostExecute(result);
+
+			if(readQueue.size() > 0 || preloadQueue.size() > 0) {
+				//Log.d(TAG,"Images are still in ReadQueue, starting Read queue thread again.");
+				synchronized (mReadImageLock) {
+					mReadImageFlag = true;
+					new ReadImageTask().executeOnExecutor(taskExecutor, (Void[])(null));
+				}
+
+			} else {
+				synchronized (mReadImageLock) {
+					mReadImageFlag = false;
+					//Log.d(TAG, "+onPostExecute mReadImageFlag false");
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Flag indicating if downloads are streamed to a temporary file in the file-system cache directory and 
+	 * decoded from there, rather than decoded straight off the connection.
+	 */
+	boolean streamToDisk = false;
+	/**
+	 * Suffix of the temporary files downloads are streamed to.
+	 */
+	static final String TEMP_SUFFIX = ".tmp";
+	/**
+	 * Flag indicating if interrupted downloads are resumed. Bodies are then streamed to a partial file in the 
+	 * file-system cache directory, kept with the validator of the response when the download breaks off, and 
+	 * a retry asks only for the remaining bytes with Range and If-Range headers.
+	 */
+	boolean resumeDownloads = false;
+	/**
+	 * Suffixes of the partial bodies of interrupted downloads and of their validators. Partial bodies not 
+	 * resumed within PARTIAL_TTL are discarded by the recovery pass.
+	 */
+	static final String PARTIAL_SUFFIX = ".part";
+	static final String VALIDATOR_SUFFIX = ".validator";
+	static final long PARTIAL_TTL = 24*60*60*1000;
+	/**
+	 * Size of the pooled I/O buffers, and maximum number of buffers kept in the pool.
+	 */
+	static final int BUFFER_SIZE = 16*1024;
+	static final int BUFFER_POOL_SIZE = 8;
+	/**
+	 * Pool of I/O buffers shared by the download threads.
+	 */
+	static final ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * This API lets user switch downloads to be streamed to a temporary file and decoded from it. It separates 
+	 * network I/O from decoding, so a stalled connection does not hold a decoder, images decoded for a target
+	 * size are not buffered in memory for the bounds pass, and memory per download is bounded by a pooled buffer.
+	 *
+	 * @param enabled true to stream downloads to file-system.
+	 */
+	public void setStreamToDisk(boolean enabled) {
+		streamToDisk = enabled;
+	}
+
+	/**
+	 * This API lets user resume interrupted downloads instead of starting them over. Bodies are streamed to the 
+	 * file-system like with {@link #setStreamToDisk(boolean)}, and what arrived of a body which broke off is kept
+	 * along with its ETag or Last-Modified validator. The retry sends Range and If-Range headers and appends the 
+	 * remaining bytes, servers without range support or with a changed image send the full body instead.
+	 *
+	 * @param enabled true to resume interrupted downloads.
+	 */
+	public void setResumeDownloads(boolean enabled) {
+		resumeDownloads = enabled;
+	}
+
+	/**
+	 * This API is internally used to take a buffer from the buffer pool, allocating one if the pool is empty.
+	 *
+	 * @return buffer of BUFFER_SIZE bytes
+	 */
+	static byte[] obtainBuffer() {
+		byte[] buffer = bufferPool.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * This API is internally used to give a buffer back to the buffer pool.
+	 *
+	 * @param buffer buffer taken by obtainBuffer
+	 */
+	static void releaseBuffer(byte[] buffer) {
+		if(bufferPool.size() < BUFFER_POOL_SIZE) {
+			bufferPool.add(buffer);
+		}
+	}
+
+	/**
+	 * Connect and read timeouts in milliseconds of the image downloads.
+	 */
+	static final int CONNECT_TIMEOUT = 15*1000;
+	static final int READ_TIMEOUT = 20*1000;
+
+	/**
+	 * This is AsyncTask which is responsible for downloading image bitmaps
+	 * for remote image URLs.
+	 * NOTE : Even though we might not get the Bitmap from the getBitmap API we need to  
+	 * get through the entire chain till save imageBitmap , because if we ignore it then 
+	 * the saveImageCounter might get screwed. And if we also decrease that then we might 
+	 * just lose track of breaking the loop of the SaveImageTask loop. And we cant force 
+	 * break the loop from outside cause it might be saving some images. So its better to
+	 * let the broken image go through the chain and ignore while saving it.
+	*/
+	private class DownloadImageTask extends AsyncTask<Void, imageObject, Void> {
+
+		/**
+		 * downloads and decodes the image of a request. On failure the error is recorded in the imageObject.
+		 *
+		 * @param iO imageObject of the request
+		 * @return decoded bitmap, null if download or decode failed.
+		 */
+		Bitmap getBitmap(imageObject iO) {
+			Bitmap bitmap = null;
+			InputStream is = null;
+			try {
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				iO.errorCode = 0;
+				iO.transientError = false;
+				iO.bytesDownloaded = 0;
+				long start = System.currentTimeMillis();
+				URLConnection connection = openConnection(iO);
+				File partial = null;
+				long offset = 0;
+				String validator = null;
+				if(resumeDownloads && connection instanceof HttpURLConnection) {
+					partial = new File(fileDir, convertImageUrl(iO.cacheKey) + PARTIAL_SUFFIX);
+					validator = partial.length() > 0 ? readValidator(partial) : null;
+					if(validator != null) {
+						offset = partial.length();
+						requestRange(connection, offset, validator);
+					}
+				}
+				boolean resumable = false;
+				if(connection instanceof HttpURLConnection) {
+					long delay = hedgeDelay(iO);
+					if(delay > 0) {
+						connection = new hedgeRace(iO, offset, validator).race((HttpURLConnection) connection, delay);
+					}
+					int code = ((HttpURLConnection) connection).getResponseCode();
+					iO.firstByteTime = System.currentTimeMillis() - start;
+					if(partial != null && (code == 416 || (code == 206 && !startsAt(connection, offset)))) {
+						/* Note : kept part does not fit the image anymore, next attempt fetches it in full */
+						deletePartial(partial);
+						iO.errorCode = code;
+						iO.transientError = true;
+						return null;
+					}
+					if(code >= 400) {
+						/* Note : request timeout, throttling and server errors may go away, other client errors will not */
+						iO.errorCode = code;
+						iO.transientError = code == 408 || code == 429 || code >= 500;
+						return null;
+					}
+					if(partial != null && code != 206) {
+						/* Note : server ignored the range or the image changed, the full body follows */
+						offset = 0;
+					}
+					if(partial != null) {
+						resumable = offset > 0 || writeValidator(partial, connection);
+					}
+				}
+				CountingInputStream counter = new CountingInputStream(connection.getInputStream());
+				if(!(connection instanceof HttpURLConnection)) {
+					iO.firstByteTime = System.currentTimeMillis() - start;
+				}
+				if(streamToDisk || partial != null) {
+					is = counter;
+					File temp = partial != null ? partial : File.createTempFile("download", TEMP_SUFFIX, fileDir);
+					boolean complete = false;
+					try {
+						copyToFile(counter, temp, offset > 0);
+						complete = true;
+						iO.bytesDownloaded = counter.count;
+						bitmap = decodeDownload(temp, iO);
+					} finally {
+						/* Note : part of an interrupted body is kept for the retry to resume it */
+						if(partial == null) {
+							temp.delete();
+						} else if(complete || !resumable) {
+							deletePartial(partial);
+						}
+					}
+					if(bitmap == null) {
+						iO.errorCode = ERROR_DECODE;
+					}
+					return bitmap;
+				}
+				is = new BufferedInputStream(counter, HEADER_SNIFF_LENGTH);
+				if(iO.targetWidth > 0 || iO.targetHeight > 0 || encodedCacheLimit > 0) {
+					/* Note : Sample size for a target size needs the image bounds, so the body is buffered 
+					 	and decoded twice, first for bounds only. Buffered body is kept in the encoded cache. */
+					byte[] data = readFully(is);
+					if(encodedCacheLimit > 0) {
+						putEncoded(iO.imageUrl, data);
+					}
+					bitmap = decodeEncoded(new ByteArrayInputStream(data), iO);
+				} else {
+					options.inPreferredConfig = resolveConfig(iO.config, is);
+					options.inSampleSize = iO.scale;
+					bitmap = BitmapFactory.decodeStream(is, null, options);
+				}
+				iO.bytesDownloaded = counter.count;
+				if(bitmap == null) {
+					iO.errorCode = ERROR_DECODE;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				iO.errorCode = ERROR_NETWORK;
+				iO.transientError = true;
+			} finally {
+				if(is != null) {
+					try {
+						is.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			return bitmap;
+		}
+
+		/**
+		 * copies the response body into a file, through a buffer taken from the buffer pool.
+		 *
+		 * @param is stream of the response body
+		 * @param file file to write to
+		 * @param append true to append to the part of the body already in the file
+		 */
+		void copyToFile(InputStream is, File file, boolean append) throws IOException {
+			byte[] buffer = obtainBuffer();
+			FileOutputStream fileOS = new FileOutputStream(file, append);
+			try {
+				int n;
+				while((n = is.read(buffer)) != -1) {
+					fileOS.write(buffer, 0, n);
+				}
+			} finally {
+				fileOS.close();
+				releaseBuffer(buffer);
+			}
+		}
+
+		/**
+		 * opens the connection of a download, not connected yet.
+		 *
+		 * @param iO imageObject of the request
+		 * @return connection to the image url
+		 * @throws IOException
+		 */
+		URLConnection openConnection(imageObject iO) throws IOException {
+			URLConnection connection = transport.open(new URL(iO.imageUrl));
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			return connection;
+		}
+
+		/**
+		 * asks for the rest of a body from an offset, as long as the image still has the validator.
+		 *
+		 * @param connection connection not connected yet
+		 * @param offset offset of the first byte asked for
+		 * @param validator validator of the part of the body already downloaded
+		 */
+		void requestRange(URLConnection connection, long offset, String validator) {
+			connection.setRequestProperty("Range", "bytes=" + offset + "-");
+			connection.setRequestProperty("If-Range", validator);
+		}
+
+		/**
+		 * This is an internal class racing a hedged attempt against the first attempt of a download till one of
+		 * them has its response. The hedge is triggered by the hedge timer once the delay passed without response,
+		 * and runs on the download executor. The attempt answering first is used, the other one is disconnected.
+		 * A hedge still queued on the executor when the first attempt is decided never starts, so a bounded user
+		 * executor can not leave the first attempt waiting on it.
+		 */
+		class hedgeRace implements Runnable {
+			final imageObject iO;
+			final long offset;
+			final String validator;
+			HttpURLConnection primary;
+			HttpURLConnection hedge;
+			HttpURLConnection winner;
+			/**
+			 * Flag indicating the first attempt is decided, no hedge is started anymore.
+			 */
+			boolean finished;
+			/**
+			 * Flags indicating the hedge was handed to the download executor, and that it started running there.
+			 */
+			boolean hedgeRunning;
+			boolean hedgeStarted;
+
+			hedgeRace(imageObject iO, long offset, String validator) {
+				this.iO = iO;
+				this.offset = offset;
+				this.validator = validator;
+			}
+
+			/**
+			 * connects the first attempt, hedging it after the delay.
+			 *
+			 * @param connection first attempt, not connected yet
+			 * @param delay time in milliseconds after which the download is hedged
+			 * @return connection which got its response first
+			 * @throws IOException if neither attempt got a response.
+			 */
+			HttpURLConnection race(HttpURLConnection connection, long delay) throws IOException {
+				primary = connection;
+				ScheduledFuture<?> trigger = null;
+				synchronized (mHedgeLock) {
+					try {
+						trigger = hedgeTimer != null ? hedgeTimer.schedule(this, delay, TimeUnit.MILLISECONDS) : null;
+					} catch (RejectedExecutionException e) {
+						/* Note : timer shut down by release, download is not hedged */
+					}
+				}
+				IOException failure = null;
+				try {
+					primary.getResponseCode();
+				} catch (IOException e) {
+					failure = e;
+				}
+				if(trigger != null) {
+					trigger.cancel(false);
+				}
+				synchronized (this) {
+					if(winner == null && failure == null) {
+						winner = primary;
+						if(hedge != null) {
+							hedge.disconnect();
+						}
+					}
+					/* Note : first attempt failed on its own, a hedge already running gets as long as the 
+					 * percentile it was started at to answer, one still queued is skipped */
+					long deadline = System.currentTimeMillis() + delay;
+					while(winner == null && hedgeRunning && hedgeStarted) {
+						long remaining = deadline - System.currentTimeMillis();
+						if(remaining <= 0) {
+							break;
+						}
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+					if(winner == null && hedge != null) {
+						hedge.disconnect();
+					}
+					finished = true;
+					if(winner == null) {
+						throw failure != null ? failure : new IOException("Hedged download interrupted");
+					}
+					return winner;
+				}
+			}
+
+			/**
+			 * starts the hedge, unless the first attempt is decided or the budget is used up. Runs on the hedge timer.
+			 */
+			public void run() {
+				synchronized (this) {
+					if(finished || winner != null || !takeHedge()) {
+						return;
+					}
+					hedgeRunning = true;
+				}
+				try {
+					downloadExecutor.execute(new Runnable() {
+						public void run() {
+							attempt();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					synchronized (this) {
+						hedgeRunning = false;
+						notifyAll();
+					}
+				}
+			}
+
+			void attempt() {
+				synchronized (this) {
+					if(finished || winner != null) {
+						/* Note : first attempt decided while the hedge was queued, it is skipped */
+						hedgeRunning = false;
+						notifyAll();
+						return;
+					}
+					hedgeStarted = true;
+				}
+				try {
+					HttpURLConnection connection = (HttpURLConnection) openConnection(iO);
+					if(offset > 0) {
+						requestRange(connection, offset, validator);
+					}
+					synchronized (this) {
+						if(finished || winner != null) {
+							return;
+						}
+						hedge = connection;
+					}
+					connection.getResponseCode();
+					synchronized (this) {
+						if(winner == null && !finished) {
+							winner = connection;
+							primary.disconnect();
+							synchronized (mHedgeLock) {
+								hedgeStats.won++;
+							}
+						} else {
+							connection.disconnect();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (this) {
+						hedgeRunning = false;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		/**
+		 * @param connection connection of a partial response
+		 * @param offset offset of the first byte asked for
+		 * @return true if the Content-Range of the response starts at the offset.
+		 */
+		boolean startsAt(URLConnection connection, long offset) {
+			String range = connection.getHeaderField("Content-Range");
+			return range != null && range.startsWith("bytes " + offset + "-");
+		}
+
+		/**
+		 * @param partial partial body of an interrupted download
+		 * @return validator of the response the partial body is from, null if there is none.
+		 */
+		String readValidator(File partial) {
+			File file = new File(partial.getPath() + VALIDATOR_SUFFIX);
+			if(!file.exists()) {
+				return null;
+			}
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				try {
+					return reader.readLine();
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		/**
+		 * keeps the validator of a response, its strong ETag or else its Last-Modified date, so an interrupted
+		 * body can be resumed only from the same version of the image.
+		 *
+		 * @param partial file the body is written to
+		 * @param connection connection of the response
+		 * @return true if the response has a validator, without one the body can not be resumed.
+		 */
+		boolean writeValidator(File partial, URLConnection connection) {
+			String validator = connection.getHeaderField("ETag");
+			if(validator == null || validator.startsWith("W/")) {
+				validator = connection.getHeaderField("Last-Modified");
+			}
+			File file = new File(partial.getPath() + VALIDATOR_SUFFIX);
+			if(validator == null) {
+				file.delete();
+				return false;
+			}
+			try {
+				FileWriter writer = new FileWriter(file);
+				try {
+					writer.write(validator);
+					writer.write('\n');
+				} finally {
+					writer.close();
+				}
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				file.delete();
+				return false;
+			}
+		}
+
+		void deletePartial(File partial) {
+			partial.delete();
+			new File(partial.getPath() + VALIDATOR_SUFFIX).delete();
+		}
+
+		/**
+		 * decodes a downloaded image from its file. As the body is on file, the bounds are decoded in a first
+		 * pass for requests with a target size, and the decoder works on a pooled buffer.
+		 *
+		 * @param file file holding the response body
+		 * @param iO imageObject of the request
+		 * @return decoded bitmap, null if the file is not a decodable image.
+		 */
+		Bitmap decodeDownload(File file, imageObject iO) throws IOException {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			InputStream is = new BufferedInputStream(new FileInputStream(file), HEADER_SNIFF_LENGTH);
+			try {
+				options.inPreferredConfig = resolveConfig(iO.config, is);
+			} finally {
+				is.close();
+			}
+			byte[] buffer = obtainBuffer();
+			try {
+				options.inTempStorage = buffer;
+				options.inSampleSize = iO.scale;
+				if(iO.targetWidth > 0 || iO.targetHeight > 0) {
+					options.inJustDecodeBounds = true;
+					BitmapFactory.decodeFile(file.getPath(), options);
+					options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, iO.targetWidth, iO.targetHeight, iO.scale);
+					options.inJustDecodeBounds = false;
+				}
+				return BitmapFactory.decodeFile(file.getPath(), options);
+			} finally {
+				releaseBuffer(buffer);
+			}
+		}
+
+		/**
+		 * downloads the image of a request and hands it over to the main thread. Downloads failing with a
+		 * transient error are retried later instead, as long as retries are left.
+		 *
+		 * @param iO imageObject of the request
+		 */
+		void download(imageObject iO) {
+			if(iO.dropped) {
+				iO.errorCode = ERROR_DROPPED;
+			} else {
+				iO.imageBitmap = getBitmap(iO);
+				recordDeadline(iO);
+				recordDownload(iO);
+				if(iO.imageBitmap == null && scheduleRetry(iO)) {
+					return;
+				}
+			}
+			publishProgress(iO);
+		}
+
+		@Override 
+		protected Void doInBackground(Void... urls) {
+
+			imageObject iO = null;
+
+			while(true) {
+				synchronized (mTaskLock) {
+					/* Note : limit was lowered by the concurrency controller, surplus threads leave */
+					if(mTaskCounter > mTaskLimit) {
+						mTaskCounter--;
+						break;
+					}
+				}
+				if((iO = pollDeadlineQueue()) != null) {
+					download(iO);
+					iO = null;
+					continue;
+				}
+				if((iO = (imageObject) fastestQueue.poll()) != null) {
+					download(iO);
+					//downloadedQueue.add(iO);
+					//Log.d(TAG, "publishing progress for" + iO.imageUrl);
+					iO = null;
+					continue;
+				} 
+				if ((iO = (imageObject) fasterQueue.poll()) != null) {
+					download(iO);
+					iO = null;
+					continue;
+				}
+				if((iO = (imageObject) fastQueue.poll()) != null) {
+					download(iO);
+					iO = null;
+					continue;
+				}
+				synchronized (mTaskLock) {
+					mTaskCounter--;
+					break;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * polls the next request from the deadline queue. Requests past their deadline by more than the margin are 
+		 * demoted behind the requests still on time, or dropped. Dropped requests are returned flagged as dropped
+		 * so they go through the chain like failed downloads.
+		 *
+		 * @return imageObject to be downloaded, null if deadline queue is empty.
+		 */
+		imageObject pollDeadlineQueue() {
+			imageObject iO;
+			while((iO = deadlineQueue.poll()) != null) {
+				if(iO.queueDeadline != iO.deadline || System.currentTimeMillis() - iO.deadline <= deadlineMissMargin) {
+					return iO;
+				}
+				if(dropMissedDeadlines) {
+					synchronized (mDeadlineLock) {
+						deadlineStats.dropped++;
+					}
+					iO.dropped = true;
+					return iO;
+				}
+				synchronized (mDeadlineLock) {
+					deadlineStats.demoted++;
+				}
+				iO.queueDeadline = iO.deadline + DEMOTE_PENALTY;
+				deadlineQueue.add(iO);
+			}
+			return null;
+		}
+
+		protected void onProgressUpdate(imageObject... values) {
+			super.onProgressUpdate(values);
+
+			imageObjectPair iOP = null;
+			if(values[0].imageBitmap != null) {
+				synchronized (mCacheLock) {
+					if(imageCacheSize >= imageCacheUpperLimit) {
+						pergeCache();
+					}
+					/* Note : lease of the save task, taken before it is accounted so it is not purged while being delivered */
+					acquireLease(values[0]);
+					accountBitmap(values[0]);
+				}
+				while((iOP = (imageObjectPair) values[0].imageObjectPairs.poll()) != null) {
+					if(isCurrent(iOP)) {
+						leaseToView(iOP.iv, values[0]);
+						if(iOP.ilcb != null) {
+							iOP.ilcb.OnDownload(values[0].imageUrl, iOP.iv, values[0].imageBitmap);
+						} else {
+							//Log.d(TAG, "setting imageUrl > " + values[0].imageUrl +  "   imageView > " + iOP.iv);
+							iOP.iv.setImageBitmap(values[0].imageBitmap);
+						}
+					}
+				}
+				releaseDependents(values[0]);
+			} else {
+				/* Note : permanent failures and failures which used up their retries are not downloaded again for a while */
+				if(values[0].errorCode != ERROR_DROPPED && negativeCacheTtl > 0) {
+					negativeCache.put(values[0].imageUrl, new failedUrl(System.currentTimeMillis() + negativeCacheTtl, values[0].errorCode));
+				}
+				while((iOP = (imageObjectPair) values[0].imageObjectPairs.poll()) != null) {
+					if(isCurrent(iOP)) {
+						if(iOP.ilcb != null) {
+							iOP.ilcb.OnError(values[0].imageUrl, iOP.iv, values[0].errorCode);
+						} else if(iOP.iv != null) {
+							showError(iOP.iv);
+						}
+					}
+				}
+				releaseDependents(values[0]);
+			}
+			//Log.d(TAG, "Adding to savQueue" + values[0].imageUrl);
+			queueSave(values[0]);
+		}
+		@Override
+		protected void onPostExecute(Void result) {
+	        //Log.d(TAG , "" + System.currentTimeMillis());
 		}
 	}
 
 	/**
-	 * This API lets user reset priorities of all the older movies, basically very useful in case user switches from 
-	 * a screen to new screen in application. So all the requests from older screen are not immediately required anymore.
-	 * Hence priorities of those can me reduced so new requests for new screen can get the bandwidth.
-	 * It basically moves all of those with fastest priority to faster priority and all those with faster priority to 
-	 * fast priority.
+	 * This API is internally used to hand an imageObject to the save task, waking it up if it waits for one.
+	 *
+	 * @param iO imageObject to be saved
 	 */
-	public void resetPriortiy() {
-		imageObject iO = null;
-		while((iO = (imageObject) fasterQueue.poll()) != null) {
-			fastQueue.add(iO);
-		}
-		while((iO = (imageObject) fastestQueue.poll()) != null) {
-			fasterQueue.add(iO);
+	private void queueSave(imageObject iO) {
+		saveQueue.add(iO);
+		synchronized (mSaveImageLock) {
+			mSaveImageLock.notifyAll();
 		}
 	}
 
 	/**
-	 * loadImage is an API to load the remote image URL into Android ImageView or
-	 * get notified about the download complete of the image by ImageLoaderCallback.
-	 * It lets you define the load priority of the image url. Images can be loaded with 
-	 * three different priorities namely fastest, faster, fast. User can choose from
-	 * {@link FASTEST_QUEUE, FASTER_QUEUE, FAST_QUEUE}. It allows user to define the 
-	 * expire time with the image. Expire time defines for how long will that image be 
-	 * stored in the file-system. Tag is a string which is associated with the request. 
-	 * It is used for purging. You can assign tag string with every request and do a bulk purging 
-	 * based on the tag string. Scale is scaling factor used to reduce the image quality. 
-	 * It affects the image's sampling while decoding.
-	 * 
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
-	 * image view can be passed. In that case in callback the imageview would be returned back. 
-	 * @param ilcb Image loader callback if user wishes to be notified about the download.
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
-	 * @param tag tag string associated with the image.
-	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * This class is an AsyncTask which saves the download image bitmaps into the file-system. While requests of 
+	 * the chain are still downloading or waiting for a retry, it waits for them without spinning.
 	 */
-	public void loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag, int scale) {
+	private class SaveImageTask extends AsyncTask<Void, imageObject, Void> {
 
-		if(tag != null)
-			LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, scale);
-		else
-			LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default", scale);
+		@Override 
+		protected Void doInBackground(Void... urls) {
+
+			imageObject iO = null;
+
+			while(true) {
+				if((iO = (imageObject) saveQueue.poll()) != null) {
+					try {
+						//Log.d(TAG, "saving file" + iO.imageUrl);
+						if(iO.imageBitmap != null) {
+							try {
+								/* Note : image purged by tag while downloading is not written, nor kept if purged while
+								 * being written, so no file is left without a tag */
+								boolean purged;
+								synchronized (mCacheLock) {
+									purged = iO.purged;
+								}
+								if(!purged) {
+									/* Note : opaque variants are small as JPEG, where the loss hardly shows at their size */
+									boolean lossy = iO.persistVariant && !iO.imageBitmap.hasAlpha();
+									iO.persistVariant = false;
+									commitImage(iO.imageBitmap, iO.file, lossy ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG, lossy ? VARIANT_QUALITY : 100);
+									synchronized (mCacheLock) {
+										purged = iO.purged;
+									}
+									if(purged) {
+										deleteCacheFile(iO.file);
+									}
+								}
+							} finally {
+								releaseLease(iO);
+							}
+						} else {
+							/* Note : If imageBitmap is null then remove it from cache 
+								cause otherwise it would not fetch it ever again. A newer request of the key is kept */
+							synchronized (mCacheLock) {
+								if(imageCache.get(iO.cacheKey) == iO) {
+									imageCache.remove(iO.cacheKey);
+									untagImageUrl(iO.cacheKey);
+								}
+							}
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					iO = null;
+					synchronized (mSaveImageLock) {
+						mSaveImageCounter--;
+						if(mSaveImageCounter == 0)
+						{
+							break;
+						}
+						continue;
+					}
+				}
+				synchronized (mSaveImageLock) {
+					if(saveQueue.isEmpty()) {
+						try {
+							mSaveImageLock.wait();
+						} catch (InterruptedException e) {
+							/* Note : the chain still owns requests, look at the queue again */
+						}
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		protected void onPostExecute(Void result) {
+			//Log.d(TAG, "Current Cache Size >" + imageCacheSize);
+			synchronized (mCacheLock) {
+				if(imageCacheSize >= imageCacheUpperLimit) {
+					pergeCache();
+				}
+			}
+		}
 	}
 
 	/**
-	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 * This API is internally used to account the decoded bitmap of an imageObject in the cache size. The bytes
+	 * accounted are remembered in the imageObject so exactly those are released again once it is freed. 
+	 * Bytes are taken from the actual allocation, so RGB_565 bitmaps count half of ARGB_8888 ones. Requests 
+	 * dropped from the cache while loading are not accounted. The bytes are accounted to the tag of the request
+	 * as well, which evicts its own images if that takes it beyond its maximum.
 	 *
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
-	 * image view can be passed. In that case in callback the imageview would be returned back. 
-	 * @param ilcb Image loader callback if user wishes to be notified about the download.
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
-	 * @param tag tag string associated with the image.
+	 * @param iO imageObject holding the decoded bitmap.
 	 */
-	public void loadImage(String imageUrl, ImageView imageView, ImageLoaderCallback ilcb, int loadPriority, int expireTime, String tag) {
-
-		if(tag != null)
-			LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, tag, 1);
-		else
-			LoadImage(imageUrl, imageView, ilcb, loadPriority, expireTime, "default",1);
+	private void accountBitmap(imageObject iO) {
+		if(iO.imageBitmap != null && iO.byteCount == 0 && imageCache.get(iO.cacheKey) == iO) {
+			iO.byteCount = (long) iO.imageBitmap.getRowBytes() * iO.imageBitmap.getHeight();
+			imageCacheSize = imageCacheSize + iO.byteCount;
+			tagQuota quota = tagQuotaMap.get(iO.tag);
+			if(quota == null) {
+				quota = new tagQuota();
+				tagQuotaMap.put(iO.tag, quota);
+			}
+			quota.size += iO.byteCount;
+			bitmapOwnerMap.put(iO.imageBitmap, iO);
+			snapshotDirty = true;
+			trimTag(iO.tag, iO.cacheKey);
+		}
+		restoreMemoryBudget();
 	}
 
 	/**
-	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 * This API is internally used to release the bytes of a freed imageObject from the cache size and from 
+	 * its tag.
 	 *
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param imageView ImageView in which the image has to be applied.
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
-	 * @param tag tag string associated with the image.
-	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * @param iO imageObject freed
 	 */
-	public void loadImage(String imageUrl, ImageView imageView, int loadPriority, int expireTime, String tag, int scale) {
-
-		if(tag != null)
-			LoadImage(imageUrl, imageView, null, loadPriority, expireTime, tag, scale);
-		else
-			LoadImage(imageUrl, imageView, null, loadPriority, expireTime, "default", scale);
+	private void releaseBitmap(imageObject iO) {
+		imageCacheSize = imageCacheSize - iO.byteCount;
+		tagQuota quota = tagQuotaMap.get(iO.tag);
+		if(quota != null) {
+			quota.size -= iO.byteCount;
+			if(quota.size <= 0 && !quota.isSet()) {
+				tagQuotaMap.remove(iO.tag);
+			}
+		}
+		iO.byteCount = 0;
 	}
 
 	/**
-	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 * This API is internally used to check if a tag uses more of the memory cache than its guaranteed minimum,
+	 * which is always the case for tags without minimum.
 	 *
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param imageView ImageView in which the image has to be applied.
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
-	 * @param tag tag string associated with the image.
+	 * @param tag tag string
+	 * @return true if images of the tag may be evicted for other tags.
 	 */
-	public void loadImage(String imageUrl, ImageView imageView, int loadPriority, int expireTime, String tag) {
-
-		if(tag != null)
-			LoadImage(imageUrl, imageView, null, loadPriority, expireTime, tag, 1);
-		else
-			LoadImage(imageUrl, imageView, null, loadPriority, expireTime, "default",1);
+	private boolean isBorrowing(String tag) {
+		tagQuota quota = tagQuotaMap.get(tag);
+		return quota == null || quota.size > quota.minimum * memoryBudgetPercent / 100;
 	}
 
 	/**
-	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 * This API is internally used to evict least recently used images of a tag till it is within its maximum.
 	 *
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param imageView ImageView in which the image has to be applied.
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
+	 * @param tag tag string
+	 * @param keepKey cache key which must not be evicted, null to evict any.
 	 */
-	public void loadImage(String imageUrl, ImageView imageView, int loadPriority, int expireTime) {
-
-		LoadImage(imageUrl, imageView, null, loadPriority, expireTime, "default",1);
+	private void trimTag(String tag, String keepKey) {
+		tagQuota quota = tagQuotaMap.get(tag);
+		if(quota == null || quota.maximum <= 0) {
+			return;
+		}
+		long limit = quota.maximum * memoryBudgetPercent / 100;
+		Iterator<Entry<String, imageObject>> it = imageCache.entrySet().iterator();
+		while (it.hasNext() && quota.size > limit) {
+			Map.Entry<String, imageObject> pairs = it.next();
+			imageObject io = pairs.getValue();
+			if(io == null || io.imageBitmap == null || io.leases > 0 || tagQuotaMap.get(io.tag) != quota || pairs.getKey().equals(keepKey)) {
+				continue;
+			}
+			evictBitmap(io);
+			if(io.file == null) {
+				untagImageUrl(pairs.getKey());
+			}
+			it.remove();
+		}
 	}
 
 	/**
-	 * load Image API with fewer parameters. The task is same as the main imageLoader API
-	 *
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
-	 * @param tag tag string associated with the image.
+	 * This API is internally used to set the image cache limits to the current percentage of the full limits.
 	 */
-	public void loadImage(String imageUrl, int loadPriority, int expireTime, String tag) {
-
-		if(tag != null)
-			LoadImage(imageUrl, null, null, loadPriority, expireTime, tag, 1);
-		else
-			LoadImage(imageUrl, null, null, loadPriority, expireTime, "default", 1);
+	private void applyMemoryBudget() {
+		imageCacheUpperLimit = imageCacheFullUpperLimit * memoryBudgetPercent / 100;
+		imageCacheLowerLimit = imageCacheFullLowerLimit * memoryBudgetPercent / 100;
+		synchronized (encodedCache) {
+			encodedCacheLimit = encodedCacheFullLimit * memoryBudgetPercent / 100;
+			slabAllocator.maxSlabs = (int) (encodedCacheLimit / SlabAllocator.SLAB_SIZE);
+			trimEncodedCache();
+			slabAllocator.trim();
+		}
 	}
 
 	/**
-	 * load Image API with fewer parameters. The task is same as the main imageLoader API
+	 * This API lets user set the budget of the encoded cache, which keeps the encoded bytes of downloaded images
+	 * in memory. Encoded images are a fraction of the size of decoded bitmaps, so the encoded cache keeps many 
+	 * more images within reach of a decode than the bitmap cache. Encoded bytes are kept off the Java heap in 
+	 * slabs of direct memory, so they add neither to the heap limit nor to garbage collection work. The budget 
+	 * is scaled down with the memory budget on memory pressure like the bitmap cache, slabs left empty beyond the
+	 * budget are released, and all of them when it drops to zero.
 	 *
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
+	 * @param bytes budget of the encoded cache in bytes, 0 to disable it.
 	 */
-	public void loadImage(String imageUrl, int loadPriority, int expireTime) {
-
-		LoadImage(imageUrl, null, null, loadPriority, expireTime, "default", 1);
+	public void setEncodedCacheLimit(long bytes) {
+		encodedCacheFullLimit = bytes;
+		applyMemoryBudget();
 	}
 
 	/**
-	 * This is the main LoadImage API which is made private and other wrappers are provided on top of this.
-	 * 
-	 * @param imageUrl remote URL of the image to be download. 
-	 * @param imageView ImageView in which the image has to be applied. if image callback is used still 
-	 * image view can be passed. In that case in callback the imageview would be returned back. 
-	 * @param ilcb Image loader callback if user wishes to be notified about the download.
-	 * @param loadPriority image loading priority
-	 * @param expireTime time for which the image should be cached in file-system
-	 * @param tag tag string associated with the image.
-	 * @param scale scaling factor of the image. Default it should be 1 (no scaling)
+	 * This API is internally used to keep the encoded bytes of a downloaded image in an off-heap chunk. Images 
+	 * taking more than a quarter of the budget or a whole slab are not kept. When no chunk of the size class 
+	 * is free and no slab can be added, least recently used entries of the same size class are evicted, then 
+	 * those of other size classes till one of their slabs is empty and can be cut for this size class.
+	 *
+	 * @param url image url
+	 * @param data encoded bytes of the image
 	 */
-	private void LoadImage(String imageUrl, ImageView imageView, ImageLoaderCallback imageCallback, int loadPriority, int expireTime, String tag, int scale ) {
-//		Log.d(TAG, "Current Cache Size >" + imageCacheSize);
-//		Log.d(TAG, "imageUrl > " + imageUrl + "   imageView > " + imageView);
-		
-		if((imageUrl == null) || (imageUrl.length() == 0)) {
-			Log.e(TAG, "Image URL is null or Empty");
-			return;
-		}
-
-		/** NOTE: New image is being loaded in imageView hence mark its timestamp. So that if same imageView was used to load
-		 * some other image , once that other image is downloaded it should not update this version
-		 */
-		imageViewUpdateTimeMap.put(imageView, new Long(System.currentTimeMillis()));
-		
-		if (imageCache.containsKey(imageUrl) == true) {
-			imageObject iO = imageCache.get(imageUrl);
-			if(iO != null && iO.imageBitmap != null) {
-
-				if(imageCallback != null) {
-					imageCallback.OnDownload(imageUrl, imageView, iO.imageBitmap);
-				} else if(imageView != null) {
-					imageView.setImageBitmap(iO.imageBitmap);
-				}
-				imageObjectPair iOP;
-				while((iOP = (imageObjectPair) iO.imageObjectPairs.poll()) != null) {
-					if(iOP.ilcb != null) {
-						iOP.ilcb.OnDownload(imageUrl, iOP.iv, iO.imageBitmap);
-					} else {
-						iOP.iv.setImageBitmap(iO.imageBitmap);
-					}
-				}
+	void putEncoded(String url, byte[] data) {
+		synchronized (encodedCache) {
+			removeEncoded(url);
+			if(data.length > encodedCacheLimit / 4 || data.length > SlabAllocator.SLAB_SIZE) {
 				return;
-			} else if(iO != null) {
-				boolean existsFlag = false; 
-				for (Iterator<imageObjectPair> it = iO.imageObjectPairs.iterator(); it.hasNext();) {
-					imageObjectPair iOP = (imageObjectPair)it.next();
-					if(iOP.ilcb != null && iOP.ilcb == imageCallback && iOP.iv == imageView) {
-						existsFlag = true;
-						iOP.time = System.currentTimeMillis();
-						break;
-					} else if(iOP.ilcb == null && iOP.iv == imageView) {
-						existsFlag = true;
-						iOP.time = System.currentTimeMillis();
-						break;
+			}
+			int sizeClass = SlabAllocator.sizeClass(data.length);
+			encodedEntry entry = new encodedEntry();
+			entry.sizeClass = sizeClass;
+			boolean allocated = slabAllocator.allocate(entry);
+			for(int pass = 0; pass < 2 && !allocated; pass++) {
+				/* Note : first pass evicts the size class only, the second any size class to free a whole slab */
+				Iterator<encodedEntry> it = encodedCache.values().iterator();
+				while(!allocated && it.hasNext()) {
+					encodedEntry lru = it.next();
+					if((pass == 1 || lru.sizeClass == sizeClass) && lru.pins == 0) {
+						it.remove();
+						evictEncoded(lru);
+						allocated = slabAllocator.allocate(entry);
 					}
 				}
-				if(existsFlag == false && imageCallback != null) {
-					imageObjectPair iOP = new imageObjectPair(imageView, imageCallback);
-					iO.imageObjectPairs.add(iOP);
-				} else if(existsFlag == false && imageView != null) {
-					imageObjectPair iOP = new imageObjectPair(imageView, null);
-					iO.imageObjectPairs.add(iOP);
-				}
-				//imageCache.remove(imageUrl);
-				return;
-			} else {
-				//Log.d(TAG, "Did the softrefernce clear my data ?>?????? for image url " + imageUrl);
-			}
-		}
-
-		File f = new File(fileDir, convertImageUrl(imageUrl));
-		if (f.exists()) {
-			//Log.d(TAG, "Got the data from file :)" + imageUrl);
-
-			imageObject iO1 = new imageObject();
-			iO1 = new imageObject();
-			iO1.imageUrl = imageUrl;
-
-			iO1.imageObjectPairs = new ConcurrentLinkedQueue<imageObjectPair>();
-
-			if(imageCallback != null) {
-				imageObjectPair iOP = new imageObjectPair(imageView, imageCallback);
-				iO1.imageObjectPairs.add(iOP);
-			} else if(imageView != null) {
-				imageObjectPair iOP = new imageObjectPair(imageView, null);
-				iO1.imageObjectPairs.add(iOP);
-			}
-
-			iO1.file = f;
-			iO1.tag = tag;
-
-			synchronized (getClass()) {
-				imageCache.put(imageUrl, iO1);
-				tagImageUrl(tag, imageUrl);
 			}
-
-			readQueue.add(iO1);
-			synchronized (mReadImageLock) {
-				if(mReadImageFlag == false) {
-					mReadImageFlag = true;
-					//Log.d(TAG, "file exists mReadImageFlag true");
-					new ReadImageTask().execute();
-				}
+			if(!allocated) {
+				return;
 			}
-			return;
-		}
-
-		/** Fetch it again*/
-		imageObject iO1 = new imageObject();
-		iO1 = new imageObject();
-		iO1.imageUrl = imageUrl;
-		iO1.scale = scale;
-		iO1.expireTime = (int) (System.currentTimeMillis()/1000 + expireTime);
-		iO1.loadPriority = loadPriority;
-		iO1.imageObjectPairs = new ConcurrentLinkedQueue<imageObjectPair>();
-		//iO1.imageViews = new ConcurrentLinkedQueue<ImageView>();
-
-		if(imageCallback != null) {
-			imageObjectPair iOP = new imageObjectPair(imageView, imageCallback);
-			iO1.imageObjectPairs.add(iOP);
-		} else if(imageView != null) {
-			//imageObjectPair iOP = new imageObjectPair(imageView, mILC);
-			imageObjectPair iOP = new imageObjectPair(imageView, null);
-			iO1.imageObjectPairs.add(iOP);
+			entry.chunk.clear();
+			entry.chunk.put(data);
+			entry.length = data.length;
+			encodedCache.put(url, entry);
+			encodedCacheSize += SlabAllocator.chunkSize(sizeClass);
+			trimEncodedCache();
 		}
+	}
 
-		iO1.file = f;
-		iO1.tag = tag;
-
-		synchronized (getClass()) {
-			imageCache.put(imageUrl, iO1);
-			tagImageUrl(tag, imageUrl);
+	/**
+	 * This API is internally used to check for the encoded bytes of an image, marking them recently used.
+	 *
+	 * @param url image url
+	 * @return true if the encoded bytes of the image are kept.
+	 */
+	boolean hasEncoded(String url) {
+		synchronized (encodedCache) {
+			return encodedCache.get(url) != null;
 		}
+	}
 
-		if(loadPriority == FASTEST_QUEUE) {
-			fastestQueue.add(iO1);
-		} else if(loadPriority == FASTER_QUEUE) {
-			fasterQueue.add(iO1);
-		} else if(loadPriority == FAST_QUEUE) {
-			fastQueue.add(iO1);
+	/**
+	 * This API is internally used to drop the encoded bytes of an image.
+	 *
+	 * @param url image url
+	 */
+	void removeEncoded(String url) {
+		synchronized (encodedCache) {
+			encodedEntry entry = encodedCache.remove(url);
+			if(entry != null) {
+				evictEncoded(entry);
+			}
 		}
+	}
 
-		synchronized (mSaveImageLock) {
-			mSaveImageCounter++;
-			if(mSaveImageCounter == 1) {
-				new SaveImageTask().execute();
-			}
+	/**
+	 * This API is internally used to give back the chunk of an entry removed from the encoded cache. Chunks 
+	 * being decoded are given back by the decoder when it is done. Callers hold the encodedCache lock.
+	 *
+	 * @param entry entry removed from the encoded cache
+	 */
+	private void evictEncoded(encodedEntry entry) {
+		encodedCacheSize -= SlabAllocator.chunkSize(entry.sizeClass);
+		entry.evicted = true;
+		if(entry.pins == 0) {
+			slabAllocator.free(entry);
 		}
+	}
 
-		synchronized (mTaskLock) {
-			if(mTaskCounter < 5) {
-				mTaskCounter++;
-				new DownloadImageTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[])(null));
-			}
+	/**
+	 * This API is internally used to evict least recently used encoded images till the encoded cache is within 
+	 * its limit, releasing the slabs once it is empty and disabled. Callers hold the encodedCache lock.
+	 */
+	private void trimEncodedCache() {
+		Iterator<encodedEntry> it = encodedCache.values().iterator();
+		while(encodedCacheSize > encodedCacheLimit && it.hasNext()) {
+			encodedEntry entry = it.next();
+			it.remove();
+			evictEncoded(entry);
+		}
+		if(encodedCacheLimit == 0 && encodedCache.isEmpty()) {
+			slabAllocator.release();
 		}
 	}
 
 	/**
-	 * This API is private and used internally to store imageUrl and corresponding 
-	 * tag value in the hashmap.
-	 * 
-	 * @param tag tag string to be associated.
-	 * @param url imageUrl to be associated to.
+	 * This is an internal class holding the off-heap chunk of an image in the encoded cache.
 	 */
-	private void tagImageUrl(String tag, String url) {
-		if(tag != null) {
-			if (tagMap.containsKey(tag) == true) {
-				ArrayList<String> list = tagMap.get(tag);
-				list.add(url);
-			} else {
-				ArrayList<String> list = new ArrayList<String>();
-				list.add(url);
-				tagMap.put(tag, list);
-			}
-		} else {
-			ArrayList<String> list = tagMap.get("default");
-			list.add(url);
-		}
+	static class encodedEntry {
+		ByteBuffer chunk;
+		int length;
+		int sizeClass;
+		/**
+		 * Slab the chunk was cut from.
+		 */
+		SlabAllocator.slab slab;
+		/**
+		 * Number of decoders reading the chunk, and whether the entry was evicted meanwhile.
+		 */
+		int pins;
+		boolean evicted;
 	}
 
 	/**
-	 * This is AsyncTask which reads cached images from the file-system.  
+	 * This is an internal class allocating chunks of direct memory for the encoded cache. Memory is taken in 
+	 * fixed-size slabs, each cut into chunks of one power of two size class with its own free list. A slab whose
+	 * chunks are all free again is released while there are more slabs than the budget allows, and otherwise 
+	 * cut again for another size class which needs one, so no size class is left without memory. Callers hold 
+	 * the encodedCache lock.
 	 */
-	private class ReadImageTask extends AsyncTask<Void, imageObject, Void> {
+	static class SlabAllocator {
+		static final int SLAB_SIZE = 256 * 1024;
+		static final int MIN_CHUNK_SIZE = 4 * 1024;
+		static final int SIZE_CLASSES = 7;
 
-		@Override 
-		protected Void doInBackground(Void... urls) {
+		/**
+		 * This is an internal class holding a slab of direct memory and its free chunks.
+		 */
+		static class slab {
+			ByteBuffer buffer;
+			int sizeClass;
+			ArrayList<ByteBuffer> freeChunks = new ArrayList<ByteBuffer>();
+			/**
+			 * Number of chunks handed out, and whether the slab was released with chunks still being decoded.
+			 */
+			int used;
+			boolean released;
 
-			imageObject iO = null;
+			/**
+			 * cuts the slab into chunks of a size class, all free.
+			 */
+			void cut(int sizeClass) {
+				this.sizeClass = sizeClass;
+				freeChunks.clear();
+				int size = chunkSize(sizeClass);
+				for(int offset = 0; offset < SLAB_SIZE; offset += size) {
+					buffer.limit(offset + size);
+					buffer.position(offset);
+					freeChunks.add(buffer.slice());
+				}
+			}
+		}
 
-			while((iO = (imageObject) readQueue.poll()) != null) {
+		/**
+		 * Slabs of each size class.
+		 */
+		@SuppressWarnings("unchecked")
+		ArrayList<slab>[] slabs = new ArrayList[SIZE_CLASSES];
+		int slabCount = 0;
+		int maxSlabs = 0;
 
-				iO.imageBitmap = BitmapFactory.decodeFile(iO.file.getPath());
+		SlabAllocator() {
+			for(int i = 0; i < SIZE_CLASSES; i++) {
+				slabs[i] = new ArrayList<slab>();
+			}
+		}
 
-				//Log.d(TAG, "publishing progress for" + iO.imageUrl);
-				publishProgress(iO);
-				iO = null;
+		static int sizeClass(int length) {
+			int sizeClass = 0;
+			while(chunkSize(sizeClass) < length) {
+				sizeClass++;
 			}
-			return null;
+			return sizeClass;
 		}
 
-		protected void onProgressUpdate(imageObject... values) {
-			super.onProgressUpdate(values);
+		static int chunkSize(int sizeClass) {
+			return MIN_CHUNK_SIZE << sizeClass;
+		}
 
-			imageObjectPair iOP = null;
-			if(values[0].imageBitmap != null) {
-				synchronized (getClass()) {
-					if(imageCacheSize >= imageCacheUpperLimit) {
-						pergeCache();
-					}
-					
-					//Log.d(TAG, values[0].imageBitmap.getByteCount() + "   " + values[0].imageBitmap.getHeight() * values[0].imageBitmap.getWidth());
-					imageCacheSize = imageCacheSize + values[0].imageBitmap.getByteCount();
+		/**
+		 * cuts a chunk of the size class of the entry, from a slab of the size class with a free chunk, a new slab
+		 * if the budget allows, or an empty slab of another size class.
+		 *
+		 * @param entry entry the chunk is for, its size class set
+		 * @return true if the chunk and its slab are set in the entry, false if no memory is left.
+		 */
+		boolean allocate(encodedEntry entry) {
+			slab target = null;
+			for(slab s : slabs[entry.sizeClass]) {
+				if(!s.freeChunks.isEmpty()) {
+					target = s;
+					break;
 				}
-				while((iOP = (imageObjectPair) values[0].imageObjectPairs.poll()) != null) {
-					Long l = (Long)imageViewUpdateTimeMap.get(iOP.iv);
-					if(iOP.time >= l.longValue()) {
-						if(iOP.ilcb != null) {
-							iOP.ilcb.OnDownload(values[0].imageUrl, iOP.iv, values[0].imageBitmap);
-						} else {
-							iOP.iv.setImageBitmap(values[0].imageBitmap);
-						}
+			}
+			if(target == null && slabCount < maxSlabs) {
+				target = new slab();
+				target.buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+				target.cut(entry.sizeClass);
+				slabs[entry.sizeClass].add(target);
+				slabCount++;
+			}
+			for(int i = 0; i < SIZE_CLASSES && target == null; i++) {
+				if(i == entry.sizeClass) {
+					continue;
+				}
+				for(Iterator<slab> it = slabs[i].iterator(); it.hasNext();) {
+					slab s = it.next();
+					if(s.used == 0) {
+						/* Note : empty slab of another size class is cut again rather than left idle */
+						it.remove();
+						s.cut(entry.sizeClass);
+						slabs[entry.sizeClass].add(s);
+						target = s;
+						break;
 					}
 				}
 			}
+			if(target == null) {
+				return false;
+			}
+			target.used++;
+			entry.chunk = target.freeChunks.remove(target.freeChunks.size() - 1);
+			entry.slab = target;
+			return true;
 		}
 
-		@Override
-		protected void onPostExecute(Void result) {
-			super.onPostExecute(result);
-
-			if(readQueue.size() > 0 ) {
-				//Log.d(TAG,"Images are still in ReadQueue, starting Read queue thread again.");
-				synchronized (mReadImageLock) {
-					mReadImageFlag = true;
-					new ReadImageTask().execute();
+		void free(encodedEntry entry) {
+			slab s = entry.slab;
+			if(s != null && !s.released) {
+				s.freeChunks.add(entry.chunk);
+				s.used--;
+				if(s.used == 0 && slabCount > maxSlabs) {
+					drop(s);
 				}
+			}
+			entry.chunk = null;
+			entry.slab = null;
+		}
 
-			} else {
-				synchronized (mReadImageLock) {
-					mReadImageFlag = false;
-					//Log.d(TAG, "+onPostExecute mReadImageFlag false");
+		/**
+		 * releases empty slabs till the slabs are within the budget.
+		 */
+		void trim() {
+			for(int i = 0; i < SIZE_CLASSES && slabCount > maxSlabs; i++) {
+				for(int k = slabs[i].size() - 1; k >= 0 && slabCount > maxSlabs; k--) {
+					if(slabs[i].get(k).used == 0) {
+						drop(slabs[i].get(k));
+					}
 				}
 			}
 		}
 
+		private void drop(slab s) {
+			slabs[s.sizeClass].remove(s);
+			s.released = true;
+			s.freeChunks.clear();
+			slabCount--;
+		}
+
+		void release() {
+			for(ArrayList<slab> list : slabs) {
+				for(slab s : list) {
+					s.released = true;
+					s.freeChunks.clear();
+				}
+				list.clear();
+			}
+			slabCount = 0;
+		}
 	}
 
 	/**
-	 * This is AsyncTask which is responsible for downloading image bitmaps
-	 * for remote image URLs.
-	 * NOTE : Even though we might not get the Bitmap from the getBitmap API we need to  
-	 * get through the entire chain till save imageBitmap , because if we ignore it then 
-	 * the saveImageCounter might get screwed. And if we also decrease that then we might 
-	 * just lose track of breaking the loop of the SaveImageTask loop. And we cant force 
-	 * break the loop from outside cause it might be saving some images. So its better to
-	 * let the broken image go through the chain and ignore while saving it.
-	*/
-	private class DownloadImageTask extends AsyncTask<Void, imageObject, Void> {
+	 * This is an internal class reading an off-heap chunk in place, without copying it to the heap first.
+	 */
+	static class SlabInputStream extends InputStream {
+		ByteBuffer buffer;
+		SlabInputStream(ByteBuffer chunk, int length) {
+			buffer = chunk.duplicate();
+			buffer.clear();
+			buffer.limit(length);
+		}
 
-		Bitmap getBitmap(String url, Integer scale) {
-			Bitmap bitmap = null;
-			try {
-				BitmapFactory.Options options = new BitmapFactory.Options();
-				options.inSampleSize = scale;
-				bitmap = BitmapFactory.decodeStream(new URL(url).openConnection().getInputStream(), null, options);
-			} catch (IOException e) {
-				e.printStackTrace();
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+			if(!buffer.hasRemaining()) {
+				return -1;
 			}
-			return bitmap;
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(b, offset, n);
+			return n;
 		}
 
-		@Override 
-		protected Void doInBackground(Void... urls) {
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
 
-			imageObject iO = null;
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
 
-			while(true) {
-				if((iO = (imageObject) fastestQueue.poll()) != null) {
-					iO.imageBitmap = getBitmap(iO.imageUrl, iO.scale);
-					//downloadedQueue.add(iO);
-					//Log.d(TAG, "publishing progress for" + iO.imageUrl);
-					publishProgress(iO);
-					iO = null;
-					continue;
-				} 
-				if ((iO = (imageObject) fasterQueue.poll()) != null) {
-					iO.imageBitmap = getBitmap(iO.imageUrl, iO.scale);
-					//downloadedQueue.add(iO);
-					publishProgress(iO);
-					iO = null;
-					continue;
-				}
-				if((iO = (imageObject) fastQueue.poll()) != null) {
-					iO.imageBitmap = getBitmap(iO.imageUrl, iO.scale);
-					//downloadedQueue.add(iO);
-					publishProgress(iO);
-					iO = null;
-					continue;
-				}
-				synchronized (mTaskLock) {
-					mTaskCounter--;
-					break;
-				}
-			}
-			return null;
+		@Override
+		public boolean markSupported() {
+			return true;
 		}
 
-		protected void onProgressUpdate(imageObject... values) {
-			super.onProgressUpdate(values);
+		@Override
+		public synchronized void mark(int readlimit) {
+			buffer.mark();
+		}
 
-			imageObjectPair iOP = null;
-			if(values[0].imageBitmap != null) {
-				synchronized (getClass()) {
-					if(imageCacheSize >= imageCacheUpperLimit) {
-						pergeCache();
-					}
-					imageCacheSize = imageCacheSize + values[0].imageBitmap.getByteCount();
-				}
-				while((iOP = (imageObjectPair) values[0].imageObjectPairs.poll()) != null) {
-					Long l = (Long)imageViewUpdateTimeMap.get(iOP.iv);
-					if(iOP.time >= l.longValue()) {
-						if(iOP.ilcb != null) {
-							iOP.ilcb.OnDownload(values[0].imageUrl, iOP.iv, values[0].imageBitmap);
-						} else {
-							//Log.d(TAG, "setting imageUrl > " + values[0].imageUrl +  "   imageView > " + iOP.iv);
-							iOP.iv.setImageBitmap(values[0].imageBitmap);
-						}
-					}
-				}
-			}
-			//Log.d(TAG, "Adding to savQueue" + values[0].imageUrl);
-			saveQueue.add(values[0]);
+		@Override
+		public synchronized void reset() {
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * This API is internally used to raise a lowered memory budget by one step, once no memory pressure was 
+	 * reported for {@link #BUDGET_RESTORE_INTERVAL}. Restoring step by step rather than at once avoids filling
+	 * the cache back right into the next trim.
+	 */
+	private void restoreMemoryBudget() {
+		if(memoryBudgetPercent < 100 && System.currentTimeMillis() - lastBudgetChangeTime >= BUDGET_RESTORE_INTERVAL) {
+			memoryBudgetPercent = Math.min(100, memoryBudgetPercent + BUDGET_RESTORE_STEP);
+			lastBudgetChangeTime = System.currentTimeMillis();
+			applyMemoryBudget();
+		}
+	}
+
+	/**
+	 * Trim memory levels of ComponentCallbacks2 added in API 16, running critical and running low. Literals so
+	 * the class compiles against the API 14 target, lower levels are never reported by older systems.
+	 */
+	static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	static final int TRIM_MEMORY_RUNNING_LOW = 10;
+
+	/**
+	 * Listener of the system memory callbacks, registered on API 14 and up only, so the class still loads on older
+	 * systems where ComponentCallbacks2 does not exist. Applications targeting those forward 
+	 * {@link #onLowMemory()} from their activities.
+	 */
+	private memoryCallbacks memoryListener;
+
+	/**
+	 * This is an internal class forwarding the system memory callbacks to the instance.
+	 */
+	private class memoryCallbacks implements ComponentCallbacks2 {
+		@Override
+		public void onTrimMemory(int level) {
+			ImageLoader.this.onTrimMemory(level);
 		}
+
 		@Override
-		protected void onPostExecute(Void result) {
-	        //Log.d(TAG , "" + System.currentTimeMillis());
+		public void onLowMemory() {
+			ImageLoader.this.onLowMemory();
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
 		}
 	}
 
 	/**
-	 * This class is an AsyncTask which saves the download image bitmaps into the file-system 
+	 * Called by the system when the process should trim its memory. The cache responds in stages by level:
+	 * while running it first drops images which are not shown in any ImageView and shrinks its budget, 
+	 * once the UI is hidden or the process is in background it keeps shrinking, and when the process is 
+	 * about to be killed it drops the whole cache. The budget is restored gradually by {@link #restoreMemoryBudget()}.
+	 *
+	 * @param level trim memory level reported by the system, one of the ComponentCallbacks2 levels.
 	 */
-	private class SaveImageTask extends AsyncTask<Void, imageObject, Void> {
+	public void onTrimMemory(int level) {
+		int percent;
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			percent = 0;
+		} else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+			percent = 25;
+		} else if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+			percent = 50;
+		} else {
+			percent = 75;
+		}
 
-		@Override 
-		protected Void doInBackground(Void... urls) {
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			/* Note : application went to background, good moment to persist the hot set before it gets killed */
+			saveSnapshot();
+		}
 
-			imageObject iO = null;
+		if(bitmapPool != null) {
+			bitmapPool.trimToSize(bitmapPool.maxSize * percent / 100);
+		}
 
-			while(true) {
-				if((iO = (imageObject) saveQueue.poll()) != null) {
-					try {
-						//Log.d(TAG, "saving file" + iO.imageUrl);
-						if(iO.imageBitmap != null) {
-							FileOutputStream fileOS = new FileOutputStream(iO.file);
-							iO.imageBitmap.compress(Bitmap.CompressFormat.PNG, 100, fileOS);
-						} else {
-							/* Note : If imageBitmap is null then remove it from cache 
-								cause otherwise it would not fetch it ever again*/
-							synchronized (getClass()) {
-								imageCache.remove(iO.imageUrl);
-							}
-						}
-					} catch (FileNotFoundException e) {
-						e.printStackTrace();
-					}
-					iO = null;
-					synchronized (mSaveImageLock) {
-						mSaveImageCounter--;
-						if(mSaveImageCounter == 0)
-						{
-							break;
-						}
-						continue;
-					}
-				}
+		synchronized (mCacheLock) {
+			lastBudgetChangeTime = System.currentTimeMillis();
+			if(percent < memoryBudgetPercent) {
+				memoryBudgetPercent = percent;
+				applyMemoryBudget();
+			}
+			if(percent == 0) {
+				decache();
+			} else {
+				trimCache(imageCacheLowerLimit, visibleCacheKeys());
 			}
-			return null;
 		}
+	}
 
-		@Override
-		protected void onPostExecute(Void result) {
-			//Log.d(TAG, "Current Cache Size >" + imageCacheSize);
-			synchronized (getClass()) {
-				if(imageCacheSize >= imageCacheUpperLimit) {
-					pergeCache();
-				}
+	/**
+	 * Called when the whole system runs low on memory, drops the whole cache. 
+	 */
+	public void onLowMemory() {
+		onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
+	/**
+	 * This API is internally used to collect the cache keys of images currently requested for shown ImageViews.
+	 *
+	 * @return set of cache keys of visible images.
+	 */
+	private HashSet<String> visibleCacheKeys() {
+		HashSet<String> keys = new HashSet<String>();
+		for(Map.Entry<ImageView, viewState> entry : viewStateMap.entrySet()) {
+			if(entry.getKey() != null && entry.getKey().isShown() && entry.getValue().cacheKey != null) {
+				keys.add(entry.getValue().cacheKey);
 			}
 		}
+		return keys;
 	}
 
 	/**
@@ -790,53 +5663,124 @@ public class ImageLoader{
 	private void pergeCache() {
 		//Log.d(TAG, "Perging Cache > Image Cache UpperLimit[" + imageCacheUpperLimit + "]  LowerLimit[" + imageCacheLowerLimit + "]");
 
-		Iterator<Entry<String, imageObject>> it = imageCache.entrySet().iterator();
-		while (it.hasNext()) {
-			Map.Entry<String, imageObject> pairs = (Map.Entry<String, imageObject>)it.next();
-			imageObject io = (imageObject) pairs.getValue();
-			if(io != null && io.imageBitmap != null) {
-				imageCacheSize = imageCacheSize - io.imageBitmap.getByteCount();
-			}
-			if(imageCacheSize <= imageCacheLowerLimit) {
-				break;
+		trimCache(imageCacheLowerLimit, null);
+		//Log.d(TAG, "Cache Size after Perging >" + imageCacheSize + "  current imageCache size >" + imageCache.size());
+	}
+
+	/**
+	 * This API is internally used to purge the in-memory cache in least recently used order till it reaches the limit.
+	 * Requests still being loaded are never purged, as their bitmap gets accounted only once it arrives, and 
+	 * neither are leased images such as those shown in ImageViews. Leases of ImageViews garbage collected 
+	 * meanwhile are released first. If tag quotas are set, a first pass purges only images of tags using more 
+	 * than their guaranteed minimum.
+	 *
+	 * @param limit cache size to purge down to.
+	 * @param keepKeys cache keys which must not be purged, null to purge any.
+	 */
+	private void trimCache(long limit, HashSet<String> keepKeys) {
+		releaseCollectedViews();
+		for(int pass = tagQuotaCount > 0 ? 0 : 1; pass < 2 && imageCacheSize > limit; pass++) {
+			Iterator<Entry<String, imageObject>> it = imageCache.entrySet().iterator();
+			while (it.hasNext() && imageCacheSize > limit) {
+				Map.Entry<String, imageObject> pairs = (Map.Entry<String, imageObject>)it.next();
+				imageObject io = (imageObject) pairs.getValue();
+				if(io != null && (io.imageBitmap == null || io.leases > 0)) {
+					continue;
+				}
+				if(keepKeys != null && keepKeys.contains(pairs.getKey())) {
+					continue;
+				}
+				if(pass == 0 && io != null && !isBorrowing(io.tag)) {
+					continue;
+				}
+				if(io != null) {
+					evictBitmap(io);
+					if(io.file == null) {
+						untagImageUrl(pairs.getKey());
+					}
+				}
+				it.remove(); // avoids a ConcurrentModificationException
 			}
-			it.remove(); // avoids a ConcurrentModificationException
 		}
-		//Log.d(TAG, "Cache Size after Perging >" + imageCacheSize + "  current imageCache size >" + imageCache.size());
 	}
 
 	/**
-	 * This API completely clears the internal image cache. Should be used only in emergency.
+	 * This API completely clears the internal image cache. Should be used only in emergency. Leased images 
+	 * are dropped from the cache as well, but stay accounted till their leases are released. Images kept in 
+	 * memory only are dropped from their tags.
 	 */
 	public void decache() {
 
-		if(!imageCache.isEmpty()) {
-			imageCache.clear();
-			imageCacheSize = 0;
+		synchronized (mCacheLock) {
+			if(!imageCache.isEmpty()) {
+				for(Map.Entry<String, imageObject> pairs : imageCache.entrySet()) {
+					imageObject io = pairs.getValue();
+					if(io != null) {
+						evictBitmap(io);
+						if(io.file == null) {
+							untagImageUrl(pairs.getKey());
+						}
+					}
+				}
+				imageCache.clear();
+				variantMap.clear();
+			}
 		}
 	}
 
 	/**
 	 * This API is exposed to user to do manual tag based purging. So once they have passed tags along with
 	 * image requests and they choose to purge all those images associated with specific tag name can be purged.
+	 * Images are purged from memory and file-system in one pass, except those still referenced by another tag.
 	 * 
 	 * @param tag tag string to purge with.
 	 */
 	public void decacheByTag(String tag) {
 		if(tag != null) {
-			if(tagMap.containsKey(tag)) {
-				ArrayList<String> list = tagMap.remove(tag);
-				for(String item: list) {
-					if(imageCache.containsKey(item)) {
-						imageObject io = imageCache.remove(item);
-						if(io != null && io.imageBitmap != null) {
-							imageCacheSize = imageCacheSize - io.imageBitmap.getByteCount();
+			ArrayList<File> files = new ArrayList<File>();
+			synchronized (mCacheLock) {
+				HashSet<String> keys = tagMap.remove(tag);
+				if(keys == null) {
+					return;
+				}
+				for(String item: keys) {
+					HashSet<String> tags = keyTagMap.get(item);
+					if(tags != null) {
+						tags.remove(tag);
+						if(!tags.isEmpty()) {
+							/* Note : image is still referenced by another tag, keep it */
+							continue;
 						}
+						keyTagMap.remove(item);
+					}
+					imageObject io = imageCache.remove(item);
+					if(io != null) {
+						io.purged = true;
+						evictBitmap(io);
 					}
+					removeEncoded(imageUrlOfKey(item));
+					files.add(new File(fileDir, convertImageUrl(item)));
 				}
 			}
+			if(!files.isEmpty()) {
+				new DeleteFilesTask().executeOnExecutor(taskExecutor, files.toArray(new File[files.size()]));
+			}
 		} else {
 			decache();
 		}
 	}
+
+	/**
+	 * This is AsyncTask which deletes a batch of cached images from the file-system.
+	 */
+	private class DeleteFilesTask extends AsyncTask<File, Void, Void> {
+
+		@Override
+		protected Void doInBackground(File... files) {
+			for(File f : files) {
+				deleteCacheFile(f);
+			}
+			return null;
+		}
+	}
 }
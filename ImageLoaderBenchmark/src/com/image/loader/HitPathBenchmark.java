@@ -0,0 +1,176 @@
+package com.image.loader;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Micro benchmark of the memory-hit path of the ImageLoader. It loads a few images served by a {@link StandInServer}
+ * into a set of ImageViews, then rebinds the views to the same images over and over from the main thread, the way
+ * a GridView rebinds its cells on every frame of a scroll, and counts the objects allocated by the main thread
+ * while doing so. The run fails if a memory hit allocates anything.
+ *
+ * Images are delivered to a callback which does nothing, so allocations of ImageView.setImageBitmap are not
+ * counted against the loader.
+ *
+ *   adb shell am instrument -w -e iterations 100000 com.image.loader.benchmark/com.image.loader.HitPathBenchmark
+ *
+ * Arguments, all optional :
+ *   views        number of ImageViews rebound, default 20.
+ *   iterations   number of rebinds measured, default 100000.
+ *   warmup       number of rebinds before measuring, default 10000.
+ *   timeout      seconds the images may take to load, default 60.
+ */
+public class HitPathBenchmark extends Instrumentation {
+
+	private static final String TAG = "HitPathBenchmark";
+
+	Bundle arguments;
+	StandInServer server;
+	ImageLoader il;
+
+	/**
+	 * Lock guarding the number of images still loading.
+	 */
+	final Object lock = new Object();
+	int pending;
+
+	String[] urls;
+	ImageView[] views;
+	long allocations;
+	long elapsedNanos;
+
+	/**
+	 * Callback of the measured rebinds, allocated once.
+	 */
+	final ImageLoader.ImageLoaderCallback sink = new ImageLoader.ImageLoaderCallback() {
+		@Override
+		void OnDownload(String imageUrl, ImageView iv, Bitmap b) {
+		}
+	};
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		this.arguments = arguments;
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		try {
+			final int count = intArgument("views", 20);
+			server = new StandInServer();
+			server.generateCorpus(count, 200, 200, Bitmap.CompressFormat.JPEG, 85);
+			server.start();
+
+			String run = String.valueOf(System.currentTimeMillis());
+			urls = new String[count];
+			for(int i = 0; i < count; i++) {
+				urls[i] = server.getUrl(i, run);
+			}
+			pending = count;
+			runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					il = ImageLoader.initialize(getTargetContext());
+					views = new ImageView[count];
+					for(int i = 0; i < count; i++) {
+						views[i] = new ImageView(getTargetContext());
+						il.loadImage(urls[i], views[i], new ImageLoader.ImageLoaderCallback() {
+							@Override
+							void OnDownload(String imageUrl, ImageView iv, Bitmap b) {
+								loaded();
+							}
+
+							@Override
+							void OnError(String imageUrl, ImageView iv, int errorCode) {
+								loaded();
+							}
+						}, 3, 0, "benchmark");
+					}
+				}
+			});
+			long deadline = SystemClock.uptimeMillis() + 1000L * intArgument("timeout", 60);
+			synchronized (lock) {
+				while(pending > 0 && SystemClock.uptimeMillis() < deadline) {
+					lock.wait(Math.max(1, deadline - SystemClock.uptimeMillis()));
+				}
+				if(pending > 0) {
+					throw new IllegalStateException(pending + " images did not load");
+				}
+			}
+
+			final int warmup = intArgument("warmup", 10000);
+			final int iterations = intArgument("iterations", 100000);
+			runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					rebind(warmup);
+					Debug.startAllocCounting();
+					Debug.resetThreadAllocCount();
+					long start = System.nanoTime();
+					rebind(iterations);
+					elapsedNanos = System.nanoTime() - start;
+					allocations = Debug.getThreadAllocCount();
+					Debug.stopAllocCounting();
+				}
+			});
+
+			results.putInt("iterations", iterations);
+			results.putLong("allocations", allocations);
+			results.putDouble("allocationsPerHit", (double) allocations / iterations);
+			results.putDouble("nanosPerHit", (double) elapsedNanos / iterations);
+			if(allocations > 0) {
+				results.putString("error", "memory hit allocated " + allocations + " objects in " + iterations + " rebinds");
+				finish(Activity.RESULT_CANCELED, results);
+				return;
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "benchmark failed", e);
+			results.putString("error", e.toString());
+			finish(Activity.RESULT_CANCELED, results);
+			return;
+		} finally {
+			if(server != null) {
+				server.stop();
+			}
+		}
+		finish(Activity.RESULT_OK, results);
+	}
+
+	/**
+	 * rebinds the views round robin to their images. Runs on the main thread.
+	 *
+	 * @param iterations number of rebinds
+	 */
+	void rebind(int iterations) {
+		for(int i = 0; i < iterations; i++) {
+			int k = i % views.length;
+			il.loadImage(urls[k], views[k], sink, 3, 0, "benchmark");
+		}
+	}
+
+	void loaded() {
+		synchronized (lock) {
+			pending--;
+			lock.notifyAll();
+		}
+	}
+
+	String argument(String key, String defaultValue) {
+		String value = arguments.getString(key);
+		return value != null ? value : defaultValue;
+	}
+
+	int intArgument(String key, int defaultValue) {
+		return Integer.parseInt(argument(key, String.valueOf(defaultValue)));
+	}
+}
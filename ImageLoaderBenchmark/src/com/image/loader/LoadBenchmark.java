@@ -0,0 +1,346 @@
+package com.image.loader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * End-to-end load benchmark of the ImageLoader. It serves an image corpus from a {@link StandInServer} on the
+ * loopback interface, drives the loader of the instrumented example application through a script of workload
+ * phases, and reports per phase the throughput, time-to-visible percentiles, bytes transferred and heap high-water
+ * marks. Downloads, file-system reads and saves all run as in the application. The download concurrency limit is
+ * traced over each phase, so a script switching network profiles shows the controller converging on each. 
+ *
+ * Runs without a display, on a device or on an emulator started with -no-window :
+ *
+ *   adb shell am instrument -w -e script "cold 200 20;warm 200 0" -e latency 100 -e bandwidth 200000 \
+ *       -e errorRate 0.05 com.image.loader.benchmark/com.image.loader.LoadBenchmark
+ *
+ * Profile sweep of the concurrency controller, from a fast link to a slow high latency one and back :
+ *
+ *   adb shell am instrument -w -e script "profile 5 0;cold 300 0;profile 200 100000;cold 300 0;profile 5 0;cold 300 0" \
+ *       -e maxTasks 16 com.image.loader.benchmark/com.image.loader.LoadBenchmark
+ *
+ * Arguments, all optional :
+ *   script       phases separated by ';', each "cold count rate" requesting count images not cached yet, or
+ *                "warm count rate" requesting again the images of the last cold phase, at rate requests per
+ *                second, 0 for all at once. Default "cold 100 20;warm 100 0". A "profile latency bandwidth"
+ *                step switches the server to another network profile for the phases after it.
+ *   images       number of images generated for the corpus, default 200.
+ *   width        width of the generated images, default 500.
+ *   height       height of the generated images, default 400.
+ *   format       jpeg or png, default jpeg.
+ *   corpusDir    directory of images used as corpus instead of generated ones.
+ *   latency      server delay to the first byte in milliseconds, default 0.
+ *   bandwidth    server bytes per second per connection, default 0 for unlimited.
+ *   errorRate    fraction of requests the server answers with 503, default 0.
+ *   dropRate     fraction of responses whose connection the server drops part way through the body, default 0.
+ *   dropAt       fraction of the body sent before a connection is dropped, default 0.8.
+ *   rangeSupport false for a server ignoring Range requests, default true.
+ *   resume       true to resume interrupted downloads with Range requests.
+ *   hedgePercentile percentile of the times to first byte after which downloads are hedged, default 0 for none.
+ *   hedgeBudget  most hedges in percent of the downloads, default 5.
+ *   streamToDisk true to stream downloads to the file-system before decoding.
+ *   minTasks     lower bound of parallel downloads.
+ *   maxTasks     upper bound of parallel downloads.
+ *   encodedCache budget of the encoded cache in bytes.
+ *   timeout      seconds a phase may take, default 120.
+ */
+public class LoadBenchmark extends Instrumentation {
+
+	private static final String TAG = "LoadBenchmark";
+
+	Bundle arguments;
+	StandInServer server;
+	ImageLoader il;
+	Handler mainHandler;
+
+	/**
+	 * Lock guarding the results of the phase running.
+	 */
+	final Object lock = new Object();
+	int phase;
+	int pending;
+	int failures;
+	ArrayList<Long> timesToVisible = new ArrayList<Long>();
+
+	/**
+	 * Heap high-water marks of the phase running, sampled in background.
+	 */
+	volatile long heapHighWater;
+	volatile long nativeHighWater;
+	volatile boolean sampling;
+	/**
+	 * Trace of the concurrency limit over the phase running, "milliseconds:limit" at every change, and the time
+	 * of the last change. Guarded by lock.
+	 */
+	StringBuilder concurrencyTrace = new StringBuilder();
+	long phaseStart;
+	long lastLimitChange;
+	int lastLimit;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		this.arguments = arguments;
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		try {
+			server = new StandInServer();
+			server.latency = intArgument("latency", 0);
+			server.bandwidth = intArgument("bandwidth", 0);
+			server.errorRate = Double.parseDouble(argument("errorRate", "0"));
+			server.dropRate = Double.parseDouble(argument("dropRate", "0"));
+			server.dropAt = Double.parseDouble(argument("dropAt", "0.8"));
+			server.rangeSupport = !"false".equals(argument("rangeSupport", "true"));
+			if(arguments.getString("corpusDir") != null) {
+				server.loadCorpus(new File(arguments.getString("corpusDir")));
+			} else {
+				server.generateCorpus(intArgument("images", 200), intArgument("width", 500), intArgument("height", 400),
+						"png".equals(argument("format", "jpeg")) ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 85);
+			}
+			server.start();
+
+			mainHandler = new Handler(Looper.getMainLooper());
+			runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					il = ImageLoader.initialize(getTargetContext());
+					il.setStreamToDisk("true".equals(argument("streamToDisk", "false")));
+					il.setResumeDownloads("true".equals(argument("resume", "false")));
+					il.setHedging(intArgument("hedgePercentile", 0), intArgument("hedgeBudget", 5));
+					il.setConcurrencyBounds(intArgument("minTasks", 2), intArgument("maxTasks", 8));
+					if(arguments.getString("encodedCache") != null) {
+						il.setEncodedCacheLimit(Long.parseLong(arguments.getString("encodedCache")));
+					}
+				}
+			});
+			startSampling();
+
+			String[] phases = argument("script", "cold 100 20;warm 100 0").split(";");
+			ArrayList<String> coldUrls = new ArrayList<String>();
+			int corpusIndex = 0;
+			for(int i = 0; i < phases.length; i++) {
+				String[] tokens = phases[i].trim().split("\\s+");
+				if("profile".equals(tokens[0])) {
+					server.latency = Integer.parseInt(tokens[1]);
+					server.bandwidth = Integer.parseInt(tokens[2]);
+					continue;
+				}
+				int count = Integer.parseInt(tokens[1]);
+				int rate = tokens.length > 2 ? Integer.parseInt(tokens[2]) : 0;
+				ArrayList<String> urls = new ArrayList<String>();
+				if("cold".equals(tokens[0])) {
+					/* Note : run string of the phase makes urls fresh, images are taken round the corpus */
+					String run = System.currentTimeMillis() + "-" + i;
+					for(int k = 0; k < count; k++) {
+						urls.add(server.getUrl(corpusIndex++ % server.corpus.size(), run));
+					}
+					coldUrls = urls;
+				} else if("warm".equals(tokens[0])) {
+					for(int k = 0; k < count && !coldUrls.isEmpty(); k++) {
+						urls.add(coldUrls.get(k % coldUrls.size()));
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown phase " + phases[i]);
+				}
+				runPhase("phase" + i + "." + tokens[0], urls, rate, results);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "benchmark failed", e);
+			results.putString("error", e.toString());
+			finish(Activity.RESULT_CANCELED, results);
+			return;
+		} finally {
+			sampling = false;
+			if(server != null) {
+				server.stop();
+			}
+		}
+		finish(Activity.RESULT_OK, results);
+	}
+
+	/**
+	 * runs a phase, requesting urls from the main thread at a rate and waiting till all are shown or failed.
+	 *
+	 * @param name name of the phase, prefix of its results
+	 * @param urls urls requested
+	 * @param rate requests per second, 0 for all at once
+	 * @param results bundle the results are added to
+	 * @throws InterruptedException
+	 */
+	void runPhase(String name, ArrayList<String> urls, int rate, Bundle results) throws InterruptedException {
+		synchronized (lock) {
+			phase++;
+			pending = urls.size();
+			failures = 0;
+			timesToVisible.clear();
+			phaseStart = SystemClock.uptimeMillis();
+			lastLimitChange = 0;
+			lastLimit = il.getConcurrency();
+			concurrencyTrace.setLength(0);
+			concurrencyTrace.append("0:").append(lastLimit);
+		}
+		long bytes = server.bytesSent.get();
+		long requests = server.requests.get();
+		long errors = server.errors.get();
+		long drops = server.drops.get();
+		long partials = server.partials.get();
+		System.gc();
+		heapHighWater = 0;
+		nativeHighWater = 0;
+		long start = SystemClock.uptimeMillis();
+
+		final int requestPhase = phase;
+		for(int i = 0; i < urls.size(); i++) {
+			final String url = urls.get(i);
+			mainHandler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					request(url, requestPhase);
+				}
+			}, rate > 0 ? i * 1000L / rate : 0);
+		}
+
+		long deadline = start + 1000L * intArgument("timeout", 120);
+		synchronized (lock) {
+			while(pending > 0 && SystemClock.uptimeMillis() < deadline) {
+				lock.wait(Math.max(1, deadline - SystemClock.uptimeMillis()));
+			}
+		}
+		long elapsed = Math.max(1, SystemClock.uptimeMillis() - start);
+
+		synchronized (lock) {
+			ArrayList<Long> sorted = new ArrayList<Long>(timesToVisible);
+			Collections.sort(sorted);
+			results.putInt(name + ".requested", urls.size());
+			results.putInt(name + ".shown", sorted.size());
+			results.putInt(name + ".failed", failures);
+			results.putInt(name + ".timedOut", pending);
+			results.putLong(name + ".elapsedMs", elapsed);
+			results.putDouble(name + ".imagesPerSecond", sorted.size() * 1000.0 / elapsed);
+			results.putLong(name + ".ttvP50Ms", percentile(sorted, 0.50));
+			results.putLong(name + ".ttvP90Ms", percentile(sorted, 0.90));
+			results.putLong(name + ".ttvP99Ms", percentile(sorted, 0.99));
+			results.putLong(name + ".ttvMaxMs", percentile(sorted, 1.0));
+			results.putLong(name + ".bytesTransferred", server.bytesSent.get() - bytes);
+			results.putLong(name + ".serverRequests", server.requests.get() - requests);
+			results.putLong(name + ".serverErrors", server.errors.get() - errors);
+			results.putLong(name + ".serverDrops", server.drops.get() - drops);
+			results.putLong(name + ".serverPartials", server.partials.get() - partials);
+			results.putLong(name + ".heapHighWater", heapHighWater);
+			results.putLong(name + ".nativeHighWater", nativeHighWater);
+			results.putInt(name + ".concurrency", il.getConcurrency());
+			results.putString(name + ".concurrencyTrace", concurrencyTrace.toString());
+			results.putLong(name + ".concurrencySettledMs", lastLimitChange);
+			results.putInt(name + ".serverLatency", server.latency);
+			results.putInt(name + ".serverBandwidth", server.bandwidth);
+			ImageLoader.HedgeStats hedgeStats = il.getHedgeStats();
+			results.putLong(name + ".hedges", hedgeStats.hedges);
+			results.putLong(name + ".hedgesWon", hedgeStats.won);
+		}
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, name + " done in " + elapsed + " ms\n");
+		sendStatus(0, status);
+	}
+
+	/**
+	 * requests an image into a fresh ImageView, recording the time till it is shown. Runs on the main thread.
+	 *
+	 * @param url image url
+	 * @param requestPhase phase the request belongs to
+	 */
+	void request(String url, final int requestPhase) {
+		final long start = SystemClock.uptimeMillis();
+		ImageView imageView = new ImageView(getTargetContext());
+		il.loadImage(url, imageView, new ImageLoader.ImageLoaderCallback() {
+			@Override
+			void OnDownload(String imageUrl, ImageView iv, Bitmap b) {
+				synchronized (lock) {
+					/* Note : requests of a phase which timed out are not counted in the next one */
+					if(requestPhase == phase) {
+						timesToVisible.add(SystemClock.uptimeMillis() - start);
+						pending--;
+						lock.notifyAll();
+					}
+				}
+			}
+
+			@Override
+			void OnError(String imageUrl, ImageView iv, int errorCode) {
+				synchronized (lock) {
+					if(requestPhase == phase) {
+						failures++;
+						pending--;
+						lock.notifyAll();
+					}
+				}
+			}
+		}, 3, 0, "benchmark");
+	}
+
+	/**
+	 * starts sampling the used Java heap, the allocated native heap and the concurrency limit every 20 
+	 * milliseconds. Bitmap pixels are on the Java heap, direct memory of the encoded cache on the native heap.
+	 */
+	void startSampling() {
+		sampling = true;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Runtime runtime = Runtime.getRuntime();
+				while(sampling) {
+					heapHighWater = Math.max(heapHighWater, runtime.totalMemory() - runtime.freeMemory());
+					nativeHighWater = Math.max(nativeHighWater, Debug.getNativeHeapAllocatedSize());
+					int limit = il.getConcurrency();
+					synchronized (lock) {
+						if(limit != lastLimit) {
+							lastLimit = limit;
+							lastLimitChange = SystemClock.uptimeMillis() - phaseStart;
+							concurrencyTrace.append(',').append(lastLimitChange).append(':').append(limit);
+						}
+					}
+					SystemClock.sleep(20);
+				}
+			}
+		}, "HeapSampler").start();
+	}
+
+	/**
+	 * @param sorted sorted values
+	 * @param fraction fraction of values at or below the percentile
+	 * @return percentile of the values, 0 if there are none.
+	 */
+	static long percentile(ArrayList<Long> sorted, double fraction) {
+		if(sorted.isEmpty()) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+	}
+
+	String argument(String key, String defaultValue) {
+		String value = arguments.getString(key);
+		return value != null ? value : defaultValue;
+	}
+
+	int intArgument(String key, int defaultValue) {
+		return Integer.parseInt(argument(key, String.valueOf(defaultValue)));
+	}
+}
@@ -0,0 +1,412 @@
+package com.image.loader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.ListAdapter;
+
+/**
+ * Scroll-trace replay benchmark of the ImageLoader. It replays a {@link ScrollTrace} of grid cell binds and unbinds
+ * against the loader like the adapter of ImageLoaderExampleActivity does, a fresh loadImage call into a recycled
+ * ImageView on every bind, with images served by a {@link StandInServer}. It reports per pass the time-to-visible
+ * of the cells, cells unbound before they were shown, deliveries into views already rebound or unbound, memory cache
+ * hits, and downloads wasted on images never shown or downloaded more than once.
+ *
+ * Replays a trace generated from a fling profile, or a trace file recorded before :
+ *
+ *   adb shell am instrument -w -e profile "fling 6000;pause 500;fling 9000;pause 300;fling -5000" -e passes 2 \
+ *       com.image.loader.benchmark/com.image.loader.ScrollReplayBenchmark
+ *
+ * Records a trace of the GridView of ImageLoaderExampleActivity while it is scrolled, by hand or by input swipe
+ * commands, for a number of seconds :
+ *
+ *   adb shell am instrument -w -e record /sdcard/scroll.trace -e duration 30 \
+ *       com.image.loader.benchmark/com.image.loader.ScrollReplayBenchmark
+ *
+ * Arguments, all optional :
+ *   trace        trace file replayed instead of a generated trace.
+ *   profile      fling profile of the generated trace, see {@link ScrollTrace#generate}.
+ *                Default "fling 6000;pause 500;fling 9000;pause 300;fling -5000;pause 1000".
+ *   columns      columns of the generated grid, default 5 like the example.
+ *   rowHeight    row height of the generated grid in pixels, default 200 like the example.
+ *   viewport     visible height of the generated grid in pixels, default 726 like the example.
+ *   deceleration fling deceleration in pixels per second squared, default 4000.
+ *   cells        number of cells of the generated grid, default 500.
+ *   passes       number of times the trace is replayed with the same urls, later passes run on warm caches.
+ *   drain        seconds waited after the trace for images still loading, default 10.
+ *   output       file the time-to-visible of every bind is written to, as csv.
+ *   images       number of images generated for the corpus, default one per cell of a generated grid, 200 for
+ *                a trace file.
+ *   width, height, latency, bandwidth, errorRate as for {@link LoadBenchmark}.
+ */
+public class ScrollReplayBenchmark extends Instrumentation {
+
+	private static final String TAG = "ScrollReplayBenchmark";
+
+	Bundle arguments;
+	StandInServer server;
+	ImageLoader il;
+	Handler mainHandler;
+
+	/**
+	 * This is an internal class holding a bind of a position to a view and what became of it.
+	 */
+	static class Binding {
+		int position;
+		String url;
+		long bindTime;
+		long shownTime = -1;
+		long unbindTime = -1;
+		/**
+		 * Flag indicating the image was delivered within the loadImage call, from memory cache.
+		 */
+		boolean memoryHit;
+	}
+
+	/**
+	 * Replay state, touched on the main thread only.
+	 */
+	HashMap<Integer, ImageView> views = new HashMap<Integer, ImageView>();
+	HashMap<ImageView, Binding> bindings = new HashMap<ImageView, Binding>();
+	ArrayList<Binding> allBindings = new ArrayList<Binding>();
+	HashSet<String> shownUrls = new HashSet<String>();
+	int staleDeliveries;
+	int lateDeliveries;
+	boolean inLoad;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		this.arguments = arguments;
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		try {
+			mainHandler = new Handler(Looper.getMainLooper());
+			if(arguments.getString("record") != null) {
+				record(new File(arguments.getString("record")), intArgument("duration", 30), results);
+				finish(Activity.RESULT_OK, results);
+				return;
+			}
+
+			ScrollTrace trace;
+			if(arguments.getString("trace") != null) {
+				trace = ScrollTrace.load(new File(arguments.getString("trace")));
+			} else {
+				trace = ScrollTrace.generate(argument("profile", "fling 6000;pause 500;fling 9000;pause 300;fling -5000;pause 1000"),
+						intArgument("cells", 500), intArgument("columns", 5), intArgument("rowHeight", 200), intArgument("viewport", 726),
+						intArgument("deceleration", 4000));
+			}
+
+			server = new StandInServer();
+			server.latency = intArgument("latency", 0);
+			server.bandwidth = intArgument("bandwidth", 0);
+			server.errorRate = Double.parseDouble(argument("errorRate", "0"));
+			/* Note : generated grids get an image per cell, recorded traces wrap around the corpus like the example */
+			int images = intArgument("images", arguments.getString("trace") != null ? 200 : intArgument("cells", 500));
+			server.generateCorpus(images, intArgument("width", 500), intArgument("height", 400), Bitmap.CompressFormat.JPEG, 85);
+			server.start();
+
+			runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					il = ImageLoader.initialize(getTargetContext());
+				}
+			});
+
+			String run = String.valueOf(System.currentTimeMillis());
+			int passes = intArgument("passes", 1);
+			for(int pass = 0; pass < passes; pass++) {
+				replay(trace, run, "pass" + pass, results);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "benchmark failed", e);
+			results.putString("error", e.toString());
+			finish(Activity.RESULT_CANCELED, results);
+			return;
+		} finally {
+			if(server != null) {
+				server.stop();
+			}
+		}
+		finish(Activity.RESULT_OK, results);
+	}
+
+	/**
+	 * replays a trace on the main thread at its own pace and collects the results of the pass.
+	 *
+	 * @param trace trace replayed
+	 * @param run string making the urls of the benchmark fresh, same for all passes
+	 * @param name name of the pass, prefix of its results
+	 * @param results bundle the results are added to
+	 */
+	void replay(final ScrollTrace trace, final String run, String name, final Bundle results) {
+		final HashMap<String, Integer> servedBefore = new HashMap<String, Integer>();
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				views.clear();
+				bindings.clear();
+				allBindings.clear();
+				shownUrls.clear();
+				staleDeliveries = 0;
+				lateDeliveries = 0;
+				for(ScrollTrace.Event event : trace.events) {
+					String url = urlOf(event.position, run);
+					if(!servedBefore.containsKey(url)) {
+						servedBefore.put(url, server.getServedCount(url));
+					}
+				}
+			}
+		});
+		long bytes = server.bytesSent.get();
+		long requests = server.requests.get();
+
+		final long start = SystemClock.uptimeMillis() + 100;
+		for(final ScrollTrace.Event event : trace.events) {
+			mainHandler.postAtTime(new Runnable() {
+				@Override
+				public void run() {
+					replay(event, run, start);
+				}
+			}, start + event.time);
+		}
+		SystemClock.sleep(start + trace.getDuration() - SystemClock.uptimeMillis() + 1000L * intArgument("drain", 10));
+
+		final String prefix = name;
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				ArrayList<Long> timesToVisible = new ArrayList<Long>();
+				int memoryHits = 0;
+				for(Binding binding : allBindings) {
+					if(binding.shownTime >= 0) {
+						timesToVisible.add(binding.shownTime - binding.bindTime);
+					}
+					if(binding.memoryHit) {
+						memoryHits++;
+					}
+				}
+				/* Note : downloads of images never shown, and repeated downloads of an image, are wasted */
+				int downloads = 0;
+				int wasted = 0;
+				for(String url : servedBefore.keySet()) {
+					int count = server.getServedCount(url) - servedBefore.get(url);
+					downloads += count;
+					wasted += shownUrls.contains(url) ? Math.max(0, count - 1) : count;
+				}
+				Collections.sort(timesToVisible);
+				int binds = allBindings.size();
+				results.putInt(prefix + ".binds", binds);
+				results.putInt(prefix + ".shown", timesToVisible.size());
+				results.putInt(prefix + ".unboundUnseen", binds - timesToVisible.size());
+				results.putLong(prefix + ".ttvP50Ms", LoadBenchmark.percentile(timesToVisible, 0.50));
+				results.putLong(prefix + ".ttvP90Ms", LoadBenchmark.percentile(timesToVisible, 0.90));
+				results.putLong(prefix + ".ttvP99Ms", LoadBenchmark.percentile(timesToVisible, 0.99));
+				results.putDouble(prefix + ".memoryHitRate", binds > 0 ? (double) memoryHits / binds : 0);
+				results.putDouble(prefix + ".downloadRate", binds > 0 ? (double) downloads / binds : 0);
+				results.putInt(prefix + ".downloads", downloads);
+				results.putInt(prefix + ".wastedDownloads", wasted);
+				results.putInt(prefix + ".staleDeliveries", staleDeliveries);
+				results.putInt(prefix + ".lateDeliveries", lateDeliveries);
+				results.putLong(prefix + ".bytesTransferred", server.bytesSent.get() - bytes);
+				results.putLong(prefix + ".serverRequests", server.requests.get() - requests);
+				if(arguments.getString("output") != null) {
+					try {
+						writeCells(new File(arguments.getString("output") + "." + prefix + ".csv"));
+					} catch (IOException e) {
+						Log.e(TAG, "writing cells failed", e);
+					}
+				}
+			}
+		});
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, name + " replayed " + trace.events.size() + " events\n");
+		sendStatus(0, status);
+	}
+
+	/**
+	 * replays an event like the adapter, a bind loads the image of the position into the view. Runs on the main
+	 * thread.
+	 *
+	 * @param event event replayed
+	 * @param run string making the urls of the benchmark fresh
+	 * @param start uptime the trace started at
+	 */
+	void replay(ScrollTrace.Event event, String run, long start) {
+		ImageView imageView = views.get(event.view);
+		if(imageView == null) {
+			imageView = new ImageView(getTargetContext());
+			views.put(event.view, imageView);
+		}
+		if(event.type == ScrollTrace.UNBIND) {
+			Binding binding = bindings.remove(imageView);
+			if(binding != null) {
+				binding.unbindTime = SystemClock.uptimeMillis() - start;
+			}
+			return;
+		}
+
+		final Binding binding = new Binding();
+		binding.position = event.position;
+		binding.url = urlOf(event.position, run);
+		binding.bindTime = SystemClock.uptimeMillis() - start;
+		bindings.put(imageView, binding);
+		allBindings.add(binding);
+		final long bindStart = start;
+		inLoad = true;
+		il.loadImage(binding.url, imageView, new ImageLoader.ImageLoaderCallback() {
+			@Override
+			void OnDownload(String imageUrl, ImageView iv, Bitmap b) {
+				Binding current = bindings.get(iv);
+				if(current == binding) {
+					if(binding.shownTime < 0) {
+						binding.shownTime = SystemClock.uptimeMillis() - bindStart;
+						binding.memoryHit = inLoad;
+						shownUrls.add(imageUrl);
+					}
+				} else if(current != null) {
+					staleDeliveries++;
+				} else {
+					lateDeliveries++;
+				}
+			}
+		}, 3, 0, "default");
+		inLoad = false;
+	}
+
+	/**
+	 * records a trace of the GridView of ImageLoaderExampleActivity. The adapter of the grid is wrapped to record
+	 * binds, and a recycler listener records unbinds, while the grid is scrolled for the duration.
+	 *
+	 * @param file file the trace is saved to
+	 * @param seconds duration of the recording
+	 * @param results bundle the results are added to
+	 * @throws IOException
+	 */
+	void record(File file, int seconds, Bundle results) throws IOException {
+		Intent intent = new Intent(Intent.ACTION_MAIN);
+		intent.setClassName(getTargetContext(), "com.image.loader.ImageLoaderExampleActivity");
+		intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		final Activity activity = startActivitySync(intent);
+		final ScrollTrace trace = new ScrollTrace();
+		final long start = SystemClock.uptimeMillis();
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				final GridView grid = (GridView) activity.findViewById(R.id.gridView1);
+				final ListAdapter adapter = grid.getAdapter();
+				final HashMap<View, Integer> viewIds = new HashMap<View, Integer>();
+				final HashMap<View, Integer> positions = new HashMap<View, Integer>();
+				grid.setRecyclerListener(new AbsListView.RecyclerListener() {
+					@Override
+					public void onMovedToScrapHeap(View view) {
+						Integer position = positions.remove(view);
+						if(position != null) {
+							trace.add(SystemClock.uptimeMillis() - start, ScrollTrace.UNBIND, position, viewIds.get(view));
+						}
+					}
+				});
+				grid.setAdapter(new BaseAdapter() {
+					@Override
+					public View getView(int position, View convertView, ViewGroup parent) {
+						View view = adapter.getView(position, convertView, parent);
+						Integer id = viewIds.get(view);
+						if(id == null) {
+							id = viewIds.size();
+							viewIds.put(view, id);
+						}
+						positions.put(view, position);
+						trace.add(SystemClock.uptimeMillis() - start, ScrollTrace.BIND, position, id);
+						return view;
+					}
+
+					@Override
+					public int getCount() {
+						return adapter.getCount();
+					}
+
+					@Override
+					public Object getItem(int position) {
+						return adapter.getItem(position);
+					}
+
+					@Override
+					public long getItemId(int position) {
+						return adapter.getItemId(position);
+					}
+				});
+			}
+		});
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, "recording for " + seconds + " s, scroll the grid\n");
+		sendStatus(0, status);
+		SystemClock.sleep(seconds * 1000L);
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				activity.finish();
+			}
+		});
+		trace.save(file);
+		results.putInt("events", trace.events.size());
+		results.putString("trace", file.getPath());
+	}
+
+	/**
+	 * writes the binds of the pass as csv, one line per bind.
+	 */
+	void writeCells(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write("position,bindMs,shownMs,unbindMs,ttvMs,memoryHit\n");
+			for(Binding binding : allBindings) {
+				writer.write(binding.position + "," + binding.bindTime + "," + binding.shownTime + "," + binding.unbindTime + ","
+						+ (binding.shownTime >= 0 ? binding.shownTime - binding.bindTime : -1) + "," + binding.memoryHit + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return url of the image of a position, positions wrap around the corpus like the example's image list.
+	 */
+	String urlOf(int position, String run) {
+		return server.getUrl(position % server.corpus.size(), run);
+	}
+
+	String argument(String key, String defaultValue) {
+		String value = arguments.getString(key);
+		return value != null ? value : defaultValue;
+	}
+
+	int intArgument(String key, int defaultValue) {
+		return Integer.parseInt(argument(key, String.valueOf(defaultValue)));
+	}
+}
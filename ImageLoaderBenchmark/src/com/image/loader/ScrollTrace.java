@@ -0,0 +1,186 @@
+package com.image.loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * This is a trace of the binds and unbinds of grid cells while scrolling, the access pattern an adapter like the one
+ * of ImageLoaderExampleActivity puts on the loader. A bind is a getView call loading the image of a position into
+ * a recycled view, an unbind the view moving to the scrap heap. Traces are recorded from a real GridView, or
+ * generated from a fling profile, and saved as one tab separated line per event : time, BIND or UNBIND, position,
+ * view.
+ */
+public class ScrollTrace {
+
+	static final int BIND = 0;
+	static final int UNBIND = 1;
+
+	/**
+	 * This is an internal class holding one event of the trace.
+	 */
+	static class Event {
+		/**
+		 * Time of the event in milliseconds from the start of the trace.
+		 */
+		long time;
+		int type;
+		/**
+		 * Adapter position bound to or unbound from the view.
+		 */
+		int position;
+		/**
+		 * Identity of the recycled view, views are reused across positions like in the GridView.
+		 */
+		int view;
+	}
+
+	ArrayList<Event> events = new ArrayList<Event>();
+
+	void add(long time, int type, int position, int view) {
+		Event event = new Event();
+		event.time = time;
+		event.type = type;
+		event.position = position;
+		event.view = view;
+		events.add(event);
+	}
+
+	/**
+	 * @return time of the last event, the length of the trace.
+	 */
+	long getDuration() {
+		return events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+	}
+
+	void save(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for(Event event : events) {
+				writer.write(event.time + "\t" + (event.type == BIND ? "BIND" : "UNBIND") + "\t" + event.position + "\t" + event.view + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	static ScrollTrace load(File file) throws IOException {
+		ScrollTrace trace = new ScrollTrace();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] tokens = line.split("\t");
+				if(tokens.length < 4) {
+					continue;
+				}
+				trace.add(Long.parseLong(tokens[0]), "BIND".equals(tokens[1]) ? BIND : UNBIND, Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * generates the trace of a grid scrolled by a fling profile. The profile is a list of steps separated by ';',
+	 * "fling velocity" flinging at velocity pixels per second, negative to scroll back, till the fling decays or
+	 * hits an end of the grid, and "pause millis" resting. The grid is advanced in frames of 16 milliseconds and
+	 * cells are bound when their row scrolls into the viewport and unbound when it scrolls out, reusing the views
+	 * unbound last.
+	 *
+	 * @param profile fling profile
+	 * @param count number of cells in the grid
+	 * @param columns number of columns of the grid
+	 * @param rowHeight height of a row in pixels
+	 * @param viewportHeight height of the visible part of the grid in pixels
+	 * @param deceleration deceleration of a fling in pixels per second squared
+	 * @return trace of the profile
+	 */
+	static ScrollTrace generate(String profile, int count, int columns, int rowHeight, int viewportHeight, int deceleration) {
+		ScrollTrace trace = new ScrollTrace();
+		Grid grid = new Grid(trace, count, columns, rowHeight, viewportHeight);
+		long time = 0;
+		double offset = 0;
+		grid.scrollTo(time, 0);
+		for(String step : profile.split(";")) {
+			String[] tokens = step.trim().split("\\s+");
+			if("pause".equals(tokens[0])) {
+				time += Long.parseLong(tokens[1]);
+			} else if("fling".equals(tokens[0])) {
+				double velocity = Double.parseDouble(tokens[1]);
+				while(Math.abs(velocity) > 1) {
+					time += 16;
+					offset += velocity * 0.016;
+					double decay = deceleration * 0.016;
+					velocity = velocity > 0 ? Math.max(0, velocity - decay) : Math.min(0, velocity + decay);
+					if(offset <= 0 || offset >= grid.maxOffset) {
+						offset = Math.max(0, Math.min(grid.maxOffset, offset));
+						velocity = 0;
+					}
+					grid.scrollTo(time, (int) offset);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown step " + step);
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * This is an internal class tracking the cells of a grid visible at a scroll offset and their views.
+	 */
+	static class Grid {
+		ScrollTrace trace;
+		int count;
+		int columns;
+		int rowHeight;
+		int viewportHeight;
+		int maxOffset;
+		int first = 0;
+		int last = 0;
+		int views = 0;
+		HashMap<Integer, Integer> viewOfPosition = new HashMap<Integer, Integer>();
+		LinkedList<Integer> scrap = new LinkedList<Integer>();
+
+		Grid(ScrollTrace trace, int count, int columns, int rowHeight, int viewportHeight) {
+			this.trace = trace;
+			this.count = count;
+			this.columns = columns;
+			this.rowHeight = rowHeight;
+			this.viewportHeight = viewportHeight;
+			int rows = (count + columns - 1) / columns;
+			maxOffset = Math.max(0, rows * rowHeight - viewportHeight);
+		}
+
+		/**
+		 * scrolls to an offset, unbinding the cells leaving the viewport before binding the ones entering it.
+		 */
+		void scrollTo(long time, int offset) {
+			int newFirst = offset / rowHeight * columns;
+			int newLast = Math.min(count, ((offset + viewportHeight - 1) / rowHeight + 1) * columns);
+			for(int position = first; position < last; position++) {
+				if(position < newFirst || position >= newLast) {
+					int view = viewOfPosition.remove(position);
+					trace.add(time, UNBIND, position, view);
+					scrap.addFirst(view);
+				}
+			}
+			for(int position = newFirst; position < newLast; position++) {
+				if(position < first || position >= last) {
+					int view = scrap.isEmpty() ? views++ : scrap.removeFirst();
+					viewOfPosition.put(position, view);
+					trace.add(time, BIND, position, view);
+				}
+			}
+			first = newFirst;
+			last = newLast;
+		}
+	}
+}
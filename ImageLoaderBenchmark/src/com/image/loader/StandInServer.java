@@ -0,0 +1,377 @@
+package com.image.loader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * This is a local HTTP server standing in for the image servers in benchmarks. It listens on the loopback
+ * interface and serves an image corpus at /image/{index}, with configurable latency to the first byte, bandwidth
+ * per connection, rate of failed requests and rate of connections dropped part way through the body. Range 
+ * requests are answered with partial content, guarded by If-Range against the ETag of the image, unless range
+ * support is switched off. Query strings are ignored, so runs can use fresh urls against the same corpus to start
+ * with cold caches.
+ */
+public class StandInServer {
+
+	private static final String TAG = "StandInServer";
+
+	/**
+	 * Delay in milliseconds before the response headers of every request.
+	 */
+	volatile int latency = 0;
+	/**
+	 * Bytes per second sent on every connection, 0 for unlimited.
+	 */
+	volatile int bandwidth = 0;
+	/**
+	 * Fraction of requests answered with 503, which the loader retries.
+	 */
+	double errorRate = 0;
+	/**
+	 * Fraction of responses whose connection is dropped after part of the body, like a flaky mobile link.
+	 */
+	double dropRate = 0;
+	/**
+	 * Fraction of the body sent before a connection is dropped.
+	 */
+	double dropAt = 0.8;
+	/**
+	 * Flag indicating if Range requests are answered with partial content, otherwise the full body is sent.
+	 */
+	boolean rangeSupport = true;
+	/**
+	 * Encoded images served, by index.
+	 */
+	ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+
+	/**
+	 * Counters of requests served, failed on purpose, and body bytes sent.
+	 */
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+	final AtomicLong bytesSent = new AtomicLong();
+	/**
+	 * Counters of connections dropped on purpose and of requests answered with partial content.
+	 */
+	final AtomicLong drops = new AtomicLong();
+	final AtomicLong partials = new AtomicLong();
+	/**
+	 * Number of images served successfully, by request path including the query string.
+	 */
+	final ConcurrentHashMap<String, AtomicInteger> served = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private ServerSocket serverSocket;
+	private ExecutorService connectionExecutor;
+	private final Random random = new Random(42);
+
+	/**
+	 * generates a corpus of images. Images are filled with blocks of random color, so they encode to sizes
+	 * comparable to photos rather than to flat images.
+	 *
+	 * @param count number of images
+	 * @param width width of the images
+	 * @param height height of the images
+	 * @param format encoding of the images
+	 * @param quality encoding quality, ignored for PNG
+	 */
+	public void generateCorpus(int count, int width, int height, Bitmap.CompressFormat format, int quality) {
+		Random colors = new Random(count);
+		int[] pixels = new int[width * height];
+		for(int i = 0; i < count; i++) {
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x += 8) {
+					int color = 0xff000000 | colors.nextInt(0x1000000);
+					if(y % 8 != 0) {
+						color = pixels[(y - 1) * width + x];
+					}
+					for(int k = x; k < x + 8 && k < width; k++) {
+						pixels[y * width + k] = color;
+					}
+				}
+			}
+			Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			bitmap.compress(format, quality, bos);
+			bitmap.recycle();
+			corpus.add(bos.toByteArray());
+		}
+	}
+
+	/**
+	 * loads a corpus of images from the files of a directory, in name order.
+	 *
+	 * @param dir directory holding the images
+	 * @throws IOException
+	 */
+	public void loadCorpus(File dir) throws IOException {
+		String[] names = dir.list();
+		if(names == null) {
+			throw new IOException("Corpus directory not readable " + dir);
+		}
+		Arrays.sort(names);
+		for(String name : names) {
+			File file = new File(dir, name);
+			byte[] data = new byte[(int) file.length()];
+			InputStream is = new FileInputStream(file);
+			try {
+				int length = 0;
+				int n;
+				while(length < data.length && (n = is.read(data, length, data.length - length)) != -1) {
+					length += n;
+				}
+			} finally {
+				is.close();
+			}
+			corpus.add(data);
+		}
+	}
+
+	/**
+	 * starts listening on an ephemeral port of the loopback interface.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+		connectionExecutor = Executors.newCachedThreadPool();
+		connectionExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				while(!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						connectionExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						});
+					} catch (IOException e) {
+						if(!serverSocket.isClosed()) {
+							Log.e(TAG, "accept failed", e);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * stops listening and drops the connections being served.
+	 */
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		connectionExecutor.shutdownNow();
+	}
+
+	/**
+	 * @param index index of the image in the corpus
+	 * @param run string making the url unique, so it is not cached by earlier runs
+	 * @return url of the image
+	 */
+	public String getUrl(int index, String run) {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/image/" + index + "?run=" + run;
+	}
+
+	/**
+	 * serves the requests of a connection, one response per connection.
+	 *
+	 * @param socket connection
+	 */
+	private void serve(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+			String requestLine = reader.readLine();
+			String range = null;
+			String ifRange = null;
+			String line;
+			while((line = reader.readLine()) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if(colon > 0) {
+					String name = line.substring(0, colon).trim();
+					if(name.equalsIgnoreCase("Range")) {
+						range = line.substring(colon + 1).trim();
+					} else if(name.equalsIgnoreCase("If-Range")) {
+						ifRange = line.substring(colon + 1).trim();
+					}
+				}
+			}
+			if(requestLine == null) {
+				return;
+			}
+			requests.incrementAndGet();
+			if(latency > 0) {
+				Thread.sleep(latency);
+			}
+			OutputStream os = socket.getOutputStream();
+			byte[] body = find(requestLine);
+			boolean fail;
+			boolean drop;
+			synchronized (random) {
+				fail = random.nextDouble() < errorRate;
+				drop = random.nextDouble() < dropRate;
+			}
+			if(body == null) {
+				os.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+			} else if(fail) {
+				errors.incrementAndGet();
+				os.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+			} else {
+				String etag = "\"" + body.length + "-" + Integer.toHexString(System.identityHashCode(body)) + "\"";
+				int offset = rangeSupport ? rangeOffset(range, ifRange, etag) : 0;
+				if(offset >= body.length) {
+					os.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + body.length
+							+ "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+				} else {
+					if(offset > 0) {
+						partials.incrementAndGet();
+						os.write(("HTTP/1.1 206 Partial Content\r\nContent-Type: application/octet-stream\r\nETag: " + etag 
+								+ "\r\nContent-Range: bytes " + offset + "-" + (body.length - 1) + "/" + body.length 
+								+ "\r\nContent-Length: " + (body.length - offset) + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+					} else {
+						os.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nETag: " + etag 
+								+ (rangeSupport ? "\r\nAccept-Ranges: bytes" : "") + "\r\nContent-Length: " + body.length
+								+ "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+					}
+					int end = body.length;
+					if(drop) {
+						/* Note : connection breaks off part way through what is left of the body */
+						end = offset + (int) ((body.length - offset) * dropAt);
+					}
+					write(os, body, offset, end);
+					if(drop) {
+						drops.incrementAndGet();
+						os.flush();
+						return;
+					}
+					countServed(requestLine.split(" ")[1]);
+				}
+			}
+			os.flush();
+		} catch (IOException e) {
+			/* Note : client gave up on the connection */
+		} catch (InterruptedException e) {
+			/* Note : server is stopping */
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @param path request path of an image served
+	 */
+	private void countServed(String path) {
+		AtomicInteger count = served.get(path);
+		if(count == null) {
+			served.putIfAbsent(path, new AtomicInteger());
+			count = served.get(path);
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @param url url of an image, as returned by {@link #getUrl(int, String)}
+	 * @return number of times the image was served successfully.
+	 */
+	public int getServedCount(String url) {
+		AtomicInteger count = served.get(url.substring(url.indexOf("/image/")));
+		return count != null ? count.get() : 0;
+	}
+
+	/**
+	 * @param range Range header of the request, null if none
+	 * @param ifRange If-Range header of the request, null if none
+	 * @param etag ETag of the image
+	 * @return offset the body is sent from, 0 for the full body.
+	 */
+	private static int rangeOffset(String range, String ifRange, String etag) {
+		if(range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+			return 0;
+		}
+		if(ifRange != null && !ifRange.equals(etag)) {
+			/* Note : image changed since the part was fetched, full body is sent */
+			return 0;
+		}
+		try {
+			return Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param requestLine request line of a GET request
+	 * @return image requested, null if there is no such image.
+	 */
+	private byte[] find(String requestLine) {
+		String[] tokens = requestLine.split(" ");
+		if(tokens.length < 2 || !tokens[1].startsWith("/image/")) {
+			return null;
+		}
+		String path = tokens[1].substring("/image/".length());
+		int query = path.indexOf('?');
+		if(query >= 0) {
+			path = path.substring(0, query);
+		}
+		try {
+			int index = Integer.parseInt(path);
+			return index >= 0 && index < corpus.size() ? corpus.get(index) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * writes a range of a body, throttled to the bandwidth in slices of a tenth of a second.
+	 *
+	 * @param os stream of the connection
+	 * @param body body to be written
+	 * @param start offset of the first byte written
+	 * @param end offset after the last byte written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void write(OutputStream os, byte[] body, int start, int end) throws IOException, InterruptedException {
+		int slice = bandwidth > 0 ? Math.max(1, bandwidth / 10) : Math.max(1, end - start);
+		for(int offset = start; offset < end; offset += slice) {
+			int length = Math.min(slice, end - offset);
+			long sliceStart = System.currentTimeMillis();
+			os.write(body, offset, length);
+			bytesSent.addAndGet(length);
+			if(bandwidth > 0) {
+				long elapsed = System.currentTimeMillis() - sliceStart;
+				if(elapsed < 100) {
+					Thread.sleep(100 - elapsed);
+				}
+			}
+		}
+	}
+}